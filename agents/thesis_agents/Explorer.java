@@ -134,10 +134,7 @@ public abstract class Explorer extends Agent{
 				
 				//get all visible friendly agents
 				ArrayList<Integer> agents = localMap.getFriendlyAgents(getMessageRadius());
-				for(Integer a : agents)
-				{
-					sendMessage(a);
-				}
+				sendMessage(agents);
 				
 				int iteration = 0;
 				Direction optimalMove = null;		
@@ -245,21 +242,40 @@ public abstract class Explorer extends Agent{
 	}
 	
 	/**
-	 * Send message (local map) to an agent
-	 * It checks for time of last message that was sent
+	 * Send message (local map) to agents
+	 * It checks for time of last message that was sent to each agent
 	 * Only one message per one real move is allowed
+	 * The map is encoded and sent only once for all agents
 	 * 
-	 * @param agentId the agent id
+	 * @param agentIds the agent ids
 	 */
-	private void sendMessage(int agentId)
+	private void sendMessage(ArrayList<Integer> agentIds)
 	{
-		Integer msgStep = communication.get(agentId);
+		ArrayList<Integer> recipients = new ArrayList<Integer>();
+		
+		for(Integer agentId : agentIds)
+		{
+			Integer msgStep = communication.get(agentId);
+			
+			if(msgStep == null || msgStep <= step - 1 )
+			{
+				recipients.add(agentId);
+				communication.put(agentId, step);
+			}
+		}
+		
+		if(recipients.isEmpty())
+		{
+			return;
+		}
 		
-		if(msgStep == null || msgStep <= step - 1 )
+		int[] to = new int[recipients.size()];
+		for(int i = 0; i < to.length; i++)
 		{
-			send(agentId, localMap.getEncodedMap());
-			communication.put(agentId, step);
+			to[i] = recipients.get(i);
 		}
+		
+		send(to, localMap.getEncodedMap());
 	}
 	
 	private Position findTarget(int iteration)
@@ -25,17 +25,19 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.net.Socket;
 import java.net.UnknownHostException;
+import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Hashtable;
 import java.util.Scanner;
 import java.util.Set;
 import java.util.Vector;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
 
 import org.grid.agent.sample.SampleAgent;
 import org.grid.protocol.Neighborhood;
 import org.grid.protocol.NewMessage;
+import org.grid.protocol.NewMessage.Capability;
 import org.grid.protocol.NewMessage.Direction;
 import org.grid.protocol.ProtocolSocket;
 
@@ -144,12 +146,156 @@ public abstract class Agent {
 		UNKNOWN, REGISTERED, INITIALIZED
 	}
 	
+	/**
+	 * Delivers the incoming messages to the agents in a thread of its own. The
+	 * agents of a multiplexed connection share one inbox, so an agent that is
+	 * slow to handle a callback delays the messages of the other agents.
+	 */
+	private static class Inbox implements Runnable {
+		
+		/**
+		 * A message and the agent it was sent to.
+		 */
+		private static class Letter {
+			
+			private ClientProtocolSocket client;
+			
+			private NewMessage message;
+			
+			public Letter(ClientProtocolSocket client, NewMessage message) {
+				this.client = client;
+				this.message = message;
+			}
+		}
+		
+		private LinkedBlockingQueue<Letter> letters = new LinkedBlockingQueue<Letter>();
+		
+		public Inbox(String name) {
+			
+			Thread thread = new Thread(this, name);
+			thread.setDaemon(true);
+			thread.start();
+			
+		}
+		
+		public void add(ClientProtocolSocket client, NewMessage message) {
+			
+			letters.add(new Letter(client, message));
+			
+		}
+		
+		@Override
+		public void run() {
+			
+			while (true) {
+				
+				Letter letter;
+				
+				try {
+					letter = letters.take();
+				} catch (InterruptedException e) {
+					continue;
+				}
+				
+				letter.client.deliver(letter.message);
+				
+			}
+			
+		}
+		
+	}
+	
+	/**
+	 * Returns the team and the passphrase of the agents.
+	 */
+	private static String[] getMembership() {
+		
+		if (teamOverride != null)
+			return new String[] {teamOverride, passphraseOverride};
+		
+		Membership m = agentClassStatic.getAnnotation(Membership.class);
+
+		if (m != null)
+			return new String[] {m.team(), m.passphrase()};
+		
+		return new String[] {"default", ""};
+		
+	}
+	
+	/**
+	 * A connection that carries several agents, each in its own channel. The
+	 * connection is registered with a single register message, the agents
+	 * share the input and output threads of the connection and one inbox.
+	 */
+	private static class MultiplexConnection extends ProtocolSocket {
+		
+		private Vector<ClientProtocolSocket> channels = new Vector<ClientProtocolSocket>();
+		
+		private boolean registered = false;
+		
+		public MultiplexConnection(Socket sck, int count) throws IOException {
+			super(sck);
+			
+			Inbox inbox = new Inbox("Messages");
+			
+			for (int i = 0; i < count; i++)
+				channels.add(new ClientProtocolSocket(this, i, "Client " + i, inbox));
+			
+			String[] membership = getMembership();
+			
+			EnumSet<Capability> capabilities = EnumSet.of(Capability.BINARY, Capability.MULTIPLEX);
+			
+			if (Boolean.getBoolean("grid.delta"))
+				capabilities.add(Capability.DELTA);
+			
+			sendMessage(new NewMessage.RegisterMessage(membership[0], membership[1], capabilities, count));
+			
+		}
+		
+		public Vector<ClientProtocolSocket> getChannels() {
+			return channels;
+		}
+		
+		@Override
+		protected void handleMessage(NewMessage message) {
+			
+			if (registered || message.getMessageType() != NewMessage.MessageType.ACKNOWLEDGE)
+				return;
+			
+			NewMessage.AcknowledgeMessage xMessage = new NewMessage.AcknowledgeMessage(message);
+			
+			if (!xMessage.getCapabilities().contains(Capability.MULTIPLEX)) {
+				System.out.println("ERROR: The server does not support multiplexed connections.");
+				close();
+				return;
+			}
+			
+			setBinary(true);
+			
+			registered = true;
+			
+			for (ClientProtocolSocket c : channels)
+				c.status = Status.REGISTERED;
+			
+		}
+		
+		@Override
+		protected void onTerminate() {
+			if (registered)
+				System.out.println("ERROR: Disconnected by server.");
+			else
+				System.out.println("ERROR: Unable to connect. Did you set the membership information correctly?");
+			super.onTerminate();
+		}
+		
+	}
+	
 	private static class ClientProtocolSocket extends ProtocolSocket implements
 			Runnable {
 
-		private ConcurrentLinkedQueue<NewMessage> inbox = new ConcurrentLinkedQueue<NewMessage>();
+		private Inbox inbox;
 		
-		private Status status = Status.UNKNOWN;
+		private volatile Status status = Status.UNKNOWN;
 
 		private Agent agent = null;
 
@@ -157,28 +303,41 @@ public abstract class Agent {
 
 		private String name;
 
+		private Neighborhood neighborhood = null;
+
 		public ClientProtocolSocket(Socket sck, String name) throws IOException {
 			super(sck);
 
-			String team = "default";
-			String passphrase = "";
-			
-			if (teamOverride == null) {
-				
-				Membership m = agentClassStatic.getAnnotation(Membership.class);
-	
-				if (m != null) {
-					team = m.team();
-					passphrase = m.passphrase();
-				}
-			} else {
-				team = teamOverride;
-				passphrase = passphraseOverride;
-			}
+			String[] membership = getMembership();
+			String team = membership[0];
+			String passphrase = membership[1];
+
+			// the binary format can be disabled with -Dgrid.binary=false,
+			// differences of states are enabled with -Dgrid.delta=true
+			if ("false".equals(System.getProperty("grid.binary")))
+				sendMessage(new NewMessage.RegisterMessage(team, passphrase));
+			else if (Boolean.getBoolean("grid.delta"))
+				sendMessage(new NewMessage.RegisterMessage(team, passphrase,
+						EnumSet.of(Capability.BINARY, Capability.DELTA)));
+			else
+				sendMessage(new NewMessage.RegisterMessage(team, passphrase,
+						EnumSet.of(Capability.BINARY)));
 
-			sendMessage(new NewMessage.RegisterMessage(team, passphrase).encodeMessage());
+			this.name = name;
+
+			this.inbox = new Inbox(name + " messages");
+
+		}
+
+		/**
+		 * Instantiates a new agent client on a channel of a multiplexed
+		 * connection. The client is registered by the connection.
+		 */
+		public ClientProtocolSocket(MultiplexConnection connection, int id, String name, Inbox inbox) {
+			super(connection, id);
 
 			this.name = name;
+			this.inbox = inbox;
 
 		}
 
@@ -188,13 +347,15 @@ public abstract class Agent {
 
 		@SuppressWarnings("unchecked")
 		@Override
-		protected void handleMessage(String msg) {
-			NewMessage message = new NewMessage(msg);
+		protected void handleMessage(NewMessage message) {
 			
 			switch (status) {
 			case UNKNOWN:
-				if (message.getMessageType() == NewMessage.MessageType.ACKNOWLEDGE)
+				if (message.getMessageType() == NewMessage.MessageType.ACKNOWLEDGE) {
+					NewMessage.AcknowledgeMessage xMessage = new NewMessage.AcknowledgeMessage(message);
+					setBinary(xMessage.getCapabilities().contains(Capability.BINARY));
 					status = Status.REGISTERED;
+				}
 				break;
 
 			case REGISTERED:
@@ -225,7 +386,7 @@ public abstract class Agent {
 							e.printStackTrace();
 						}
 
-						sendMessage(new NewMessage.AcknowledgeMessage().encodeMessage());
+						sendMessage(new NewMessage.AcknowledgeMessage());
 
 						status = Status.INITIALIZED;
 						
@@ -240,17 +401,10 @@ public abstract class Agent {
 				break;
 
 			case INITIALIZED:
-				if (message.getMessageType() == NewMessage.MessageType.STATE)
-					super.handleMessage(msg);
-
 				if ((message.getMessageType() == NewMessage.MessageType.RECEIVE)
 						|| (message.getMessageType() == NewMessage.MessageType.STATE)) {
 
-					synchronized (inbox) {
-
-						inbox.add(message);
-						inbox.notifyAll();
-					}
+					inbox.add(this, message);
 
 				}
 
@@ -279,70 +433,70 @@ public abstract class Agent {
 
 		@Override
 		protected void onTerminate() {
-			switch (status) {
-			case UNKNOWN:
-				System.out
-						.println("ERROR: Unable to connect. Did you set the membership information correctly?");
-				break;
-			case REGISTERED:
-				System.out.println("ERROR: Disconnected by server.");
-				break;
-			case INITIALIZED:
-				System.out.println("ERROR: Disconnected by server.");
-				break;
+			// the connection reports the errors of its channels
+			if (getChannelId() < 0) {
+				switch (status) {
+				case UNKNOWN:
+					System.out
+							.println("ERROR: Unable to connect. Did you set the membership information correctly?");
+					break;
+				case REGISTERED:
+					System.out.println("ERROR: Disconnected by server.");
+					break;
+				case INITIALIZED:
+					System.out.println("ERROR: Disconnected by server.");
+					break;
+				}
 			}
 			super.onTerminate();
 			terminated = true;
 		}
 
-		@Override
-		public void run() {
-			Thread messages = new Thread(new Runnable() {
-
-				@Override
-				public void run() {
+		/**
+		 * Passes an incoming message to the agent, called by the inbox.
+		 */
+		private void deliver(NewMessage msg) {
 
-					while (true) {
+			Neighborhood state = null;
 
-						synchronized (inbox) {
-							while (inbox.isEmpty()) {
-								try {
-									inbox.wait();
-								} catch (InterruptedException e) {
-								}
-							}
-						}
+			if (msg.getMessageType() == NewMessage.MessageType.STATE) {
+				// differences have to be applied even if the agent is gone
+				try {
+					neighborhood = new NewMessage.StateMessage(msg).getNeighborhood(neighborhood);
+					state = new Neighborhood(neighborhood);
+				} catch (Exception e) {
+					e.printStackTrace();
+				}
+			}
 
-						NewMessage msg = inbox.poll();
-
-						if (agent != null && isAlive()) {
-							try {
-
-								if (msg.getMessageType() == NewMessage.MessageType.RECEIVE) {
-									
-									NewMessage.ReceiveMessage xMessage = new NewMessage.ReceiveMessage(msg);
-									agent.receive(xMessage.getFrom(),
-												  xMessage.getMessage());
-									
-								} else if (msg.getMessageType() == NewMessage.MessageType.STATE) {
-									
-									NewMessage.StateMessage xMessage = new NewMessage.StateMessage(msg);
-									//TODO: Check for stamp
-									agent.state(0,
-												xMessage.getNeighborhood(),
-												xMessage.getDirection(),
-												xMessage.getHasFlag());
-								}
-
-							} catch (Exception e) {
-								e.printStackTrace();
-							}
-						}
+			if (agent != null && isAlive()) {
+				try {
 
+					if (msg.getMessageType() == NewMessage.MessageType.RECEIVE) {
+						
+						NewMessage.ReceiveMessage xMessage = new NewMessage.ReceiveMessage(msg);
+						agent.receive(xMessage.getFrom(),
+									  xMessage.getMessage());
+						
+					} else if (msg.getMessageType() == NewMessage.MessageType.STATE) {
+						
+						NewMessage.StateMessage xMessage = new NewMessage.StateMessage(msg);
+						//TODO: Check for stamp
+						agent.state(0,
+									state,
+									xMessage.getDirection(),
+									xMessage.getHasFlag());
 					}
+
+				} catch (Exception e) {
+					e.printStackTrace();
 				}
-			});
-			messages.start();
+			}
+
+		}
+
+		@Override
+		public void run() {
 
 			try {
 
@@ -411,22 +565,41 @@ public abstract class Agent {
 			count = Integer.parseInt(agentConfig.get("numberOfAgents"));
 		}
 		
-		for (int i = 0; i < count; i++) {
+		// all agents share one connection with -Dgrid.multiplex=true
+		if (Boolean.getBoolean("grid.multiplex")) {
 			Socket socket = new Socket(args[0], 5000);
 			socket.setTcpNoDelay(true);
 			
-			ClientProtocolSocket client = new ClientProtocolSocket(socket,
-					"Client " + i);
+			MultiplexConnection connection = new MultiplexConnection(socket, count);
+			
+			for (ClientProtocolSocket client : connection.getChannels()) {
+				Thread thread = new Thread(client);
+				thread.setName(client.getName());
+				thread.start();
 
-			try {
-				Thread.sleep(100);
-			} catch (InterruptedException e) {}
+				clients.add(client);
+			}
 			
-			Thread thread = new Thread(client);
-			thread.setName(client.getName());
-			thread.start();
+		} else {
 
-			clients.add(client);
+			for (int i = 0; i < count; i++) {
+				Socket socket = new Socket(args[0], 5000);
+				socket.setTcpNoDelay(true);
+			
+				ClientProtocolSocket client = new ClientProtocolSocket(socket,
+						"Client " + i);
+
+				try {
+					Thread.sleep(100);
+				} catch (InterruptedException e) {}
+			
+				Thread thread = new Thread(client);
+				thread.setName(client.getName());
+				thread.start();
+
+				clients.add(client);
+
+			}
 
 		}
 
@@ -514,7 +687,7 @@ public abstract class Agent {
 		if (!isAlive())
 			return;
 
-		client.sendMessage(new NewMessage.SendMessage(to,  message).encodeMessage());
+		client.sendMessage(new NewMessage.SendMessage(to,  message));
 	}
 
 	/**
@@ -533,7 +706,39 @@ public abstract class Agent {
 		if (!isAlive())
 			return;
 
-		client.sendMessage(new NewMessage.SendMessage(to,  message.getBytes()).encodeMessage());
+		client.sendMessage(new NewMessage.SendMessage(to,  message.getBytes()));
+
+	}
+
+	/**
+	 * Send a message to several agents in the same team. The message is
+	 * uploaded only once and delivered by the server to every agent that is in
+	 * range.
+	 * 
+	 * @param to
+	 *            the ids of the agents in the same team that should receive
+	 *            this message
+	 * @param message
+	 *            the message as a byte array
+	 */
+	public final void send(int[] to, byte[] message) {
+
+		if (!isAlive())
+			return;
+
+		client.sendMessage(new NewMessage.MulticastMessage(to, message));
+
+	}
+
+	/**
+	 * Send a message to all agents in the same team that are in range.
+	 * 
+	 * @param message
+	 *            the message as a byte array
+	 */
+	public final void broadcast(byte[] message) {
+
+		send(new int[0], message);
 
 	}
 
@@ -550,7 +755,7 @@ public abstract class Agent {
 		if (!isAlive())
 			return;
 
-		client.sendMessage(new NewMessage.MoveMessage(direction).encodeMessage());
+		client.sendMessage(new NewMessage.MoveMessage(direction));
 
 	}
 
@@ -567,7 +772,7 @@ public abstract class Agent {
 		if (!isAlive())
 			return;
 
-		client.sendMessage(new NewMessage.ScanMessage(stamp).encodeMessage());
+		client.sendMessage(new NewMessage.ScanMessage(stamp));
 		
 	}
 
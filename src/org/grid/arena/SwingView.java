@@ -20,9 +20,15 @@ package org.grid.arena;
 import java.awt.Color;
 import java.awt.Dimension;
 import java.awt.Graphics;
+import java.awt.GraphicsConfiguration;
 import java.awt.Polygon;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.util.Collection;
+import java.util.Hashtable;
 
 import javax.swing.JPanel;
+import javax.swing.SwingUtilities;
 
 public class SwingView extends JPanel implements ArenaView {
 
@@ -139,6 +145,20 @@ public class SwingView extends JPanel implements ArenaView {
 	
 	private Palette palette = null;
 	
+	// the size of the blocks of cells that are repainted together
+	private static final int REGION_SIZE = 16;
+
+	// the largest number of regions that are painted one by one
+	private static final int MAX_REGIONS = 64;
+
+	// the largest cached background in pixels, larger arenas are painted directly
+	private static final int MAX_BACKGROUND_PIXELS = 1 << 24;
+
+	// the base tiles as painted with the current cell size and palette
+	private volatile BufferedImage background = null;
+
+	private boolean staticBackground = false;
+
 	public SwingView(int cellSize) {
 
 		setDoubleBuffered(true);
@@ -159,13 +179,107 @@ public class SwingView extends JPanel implements ArenaView {
 		isFood = isBenchmark; 
 	}
 	
+	/**
+	 * Returns the cells that intersect the clip of the graphics context.
+	 *
+	 * @param g the graphics context
+	 * @param view the arena
+	 * @param margin the number of additional cells around the clip
+	 * @return the cells, the rectangle is given in cell coordinates
+	 */
+	protected Rectangle getClipCells(Graphics g, Arena view, int margin) {
+
+		Rectangle cells = new Rectangle(0, 0, view.getWidth(), view.getHeight());
+
+		Rectangle clip = g.getClipBounds();
+
+		if (clip == null)
+			return cells;
+
+		int x0 = clip.x / cellSize - margin;
+		int y0 = clip.y / cellSize - margin;
+		int x1 = (clip.x + clip.width + cellSize - 1) / cellSize + margin;
+		int y1 = (clip.y + clip.height + cellSize - 1) / cellSize + margin;
+
+		return cells.intersection(new Rectangle(x0, y0, x1 - x0, y1 - y0));
+
+	}
+
+	/**
+	 * Tells the view whether the base tiles of the arenas it shows never change.
+	 * Static base tiles are painted once into an image that is reused until the
+	 * cell size or the palette changes, otherwise they are painted every time.
+	 *
+	 * @param staticBackground true if the base tiles never change
+	 */
+	public void setStaticBackground(boolean staticBackground) {
+
+		this.staticBackground = staticBackground;
+
+		background = null;
+
+		repaint();
+	}
+
+	/**
+	 * Paints the base tiles of the arena, from the cached image if the
+	 * background is static (see {@link #setStaticBackground(boolean)}).
+	 *
+	 * @param g the graphics context
+	 * @param view the arena
+	 */
 	protected void paintBackground(Graphics g, Arena view) {
 		
+		if (!staticBackground) {
+			paintBaseTiles(g, view);
+			return;
+		}
+
+		BufferedImage image = background;
+
+		int width = view.getWidth() * cellSize, height = view.getHeight() * cellSize;
+
+		if (image == null || image.getWidth() != width || image.getHeight() != height) {
+
+			if ((long) width * height > MAX_BACKGROUND_PIXELS || width == 0 || height == 0) {
+				paintBaseTiles(g, view);
+				return;
+			}
+
+			GraphicsConfiguration configuration = getGraphicsConfiguration();
+
+			if (configuration != null)
+				image = configuration.createCompatibleImage(width, height);
+			else
+				image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+
+			Graphics ig = image.getGraphics();
+			paintBaseTiles(ig, view);
+			ig.dispose();
+
+			background = image;
+		}
+
+		g.drawImage(image, 0, 0, null);
+
+	}
+
+	/**
+	 * Paints the base tiles of the arena cell by cell. Used directly for arenas
+	 * whose base tiles change, for example a visit map.
+	 *
+	 * @param g the graphics context
+	 * @param view the arena
+	 */
+	protected void paintBaseTiles(Graphics g, Arena view) {
+		
 		Palette p = palette == null ? grassPalette : palette;
 		
-		for (int j = 0; j < view.getHeight(); j++) {
+		Rectangle cells = getClipCells(g, view, 0);
+
+		for (int j = cells.y; j < cells.y + cells.height; j++) {
 
-			for (int i = 0; i < view.getWidth(); i++) {
+			for (int i = cells.x; i < cells.x + cells.width; i++) {
 
 				int base = view.getBaseTile(i, j);
 
@@ -182,9 +296,12 @@ public class SwingView extends JPanel implements ArenaView {
 		
 		Color color = null;
 
-		for (int j = 0; j < view.getHeight(); j++) {
+		// bodies are drawn up to one cell away from their cell
+		Rectangle cells = getClipCells(g, view, 1);
 
-			for (int i = 0; i < view.getWidth(); i++) {
+		for (int j = cells.y; j < cells.y + cells.height; j++) {
+
+			for (int i = cells.x; i < cells.x + cells.width; i++) {
 				
 				int body = view.getBodyTile(i, j);
 
@@ -309,15 +426,125 @@ public class SwingView extends JPanel implements ArenaView {
 		if (view == null)
 			return;
 		
+		int[] changed = setArena(view);
+
+		if (changed == null)
+			repaint();
+		else
+			repaintCells(view.getWidth(), changed);
+		
+	}
+
+	/**
+	 * Replaces the arena that is shown without repainting the view.
+	 *
+	 * @param view the new arena
+	 * @return the cells that have changed since the previous arena or null if
+	 * they are not known
+	 */
+	protected int[] setArena(Arena view) {
+
+		Arena previous;
+
 		synchronized (this) {
+			previous = this.view;
+
 			this.view = view;
 			
 			this.size = new Dimension(view.getWidth() * cellSize, view.getHeight()
 					* cellSize);
 		}
 		
-		repaint();
-		
+		int[] changed = null;
+
+		if (previous != null && view instanceof TrackedArena
+				&& previous.getWidth() == view.getWidth()
+				&& previous.getHeight() == view.getHeight())
+			changed = ((TrackedArena) view).getChangedCells(previous);
+
+		return changed;
+
+	}
+
+	/**
+	 * Requests a repaint of the given cells and their neighbors (a body can be
+	 * drawn up to one cell away from its cell). The cells are grouped by blocks
+	 * of {@value #REGION_SIZE} by {@value #REGION_SIZE} cells and the bounds of
+	 * the changed cells of every block are repainted separately.
+	 *
+	 * @param width the width of the arena
+	 * @param cells the cells as <code>y * width + x</code>
+	 */
+	protected void repaintCells(int width, int[] cells) {
+
+		if (cells.length == 0)
+			return;
+
+		int blocks = (width + REGION_SIZE - 1) / REGION_SIZE;
+
+		Hashtable<Integer, Rectangle> regions = new Hashtable<Integer, Rectangle>();
+
+		for (int cell : cells) {
+			int x = cell % width, y = cell / width;
+
+			Integer block = (y / REGION_SIZE) * blocks + x / REGION_SIZE;
+
+			Rectangle bounds = new Rectangle((x - 1) * cellSize, (y - 1) * cellSize,
+					3 * cellSize, 3 * cellSize);
+
+			Rectangle region = regions.get(block);
+
+			if (region == null)
+				regions.put(block, bounds);
+			else
+				region.add(bounds);
+		}
+
+		repaintRegions(regions.values());
+
+	}
+
+	/**
+	 * Repaints the given regions of the view. The repaint manager merges all
+	 * repaint requests of a component into one rectangle, which covers the
+	 * whole view once the changes are spread over it. Several regions are
+	 * therefore painted one by one in the event dispatch thread. If there are
+	 * too many of them, their bounds are repainted instead.
+	 *
+	 * @param regions the regions in pixels
+	 */
+	protected void repaintRegions(Collection<Rectangle> regions) {
+
+		if (regions.isEmpty())
+			return;
+
+		final Rectangle[] list = regions.toArray(new Rectangle[regions.size()]);
+
+		if (list.length == 1 || list.length > MAX_REGIONS || !isShowing()) {
+
+			Rectangle bounds = new Rectangle(list[0]);
+
+			for (Rectangle r : list)
+				bounds.add(r);
+
+			repaint(bounds);
+			return;
+		}
+
+		Runnable paint = new Runnable() {
+
+			@Override
+			public void run() {
+				for (Rectangle r : list)
+					paintImmediately(r);
+			}
+		};
+
+		if (SwingUtilities.isEventDispatchThread())
+			paint.run();
+		else
+			SwingUtilities.invokeLater(paint);
+
 	}
 
 	public void setCellSize(int cellSize) {
@@ -326,6 +553,8 @@ public class SwingView extends JPanel implements ArenaView {
 		
 		this.cellBorder = Math.max(1, Math.round((float)this.cellSize * 0.1f));
 		
+		background = null;
+		
 		if(isFood)
 		{
 			flag = getFoodGlyph(this.cellSize);
@@ -352,5 +581,9 @@ public class SwingView extends JPanel implements ArenaView {
 	
 	public void setBasePallette(Palette p) {
 		palette = p;
+
+		background = null;
+
+		repaint();
 	}
 }
@@ -0,0 +1,35 @@
+/*
+ *  AgentField - a simple capture-the-flag simulation for distributed intelligence
+ *  Copyright (C) 2011 Luka Cehovin <http://vicos.fri.uni-lj.si/lukacu>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program. If not, see <http://www.gnu.org/licenses/>. 
+ */
+package org.grid.arena;
+
+/**
+ * An arena that knows which cells changed since an earlier state. Views use
+ * it to repaint only the changed parts of the arena.
+ */
+public interface TrackedArena extends Arena {
+
+	/**
+	 * Returns the cells (as <code>y * width + x</code>) that changed since the
+	 * given arena was current. A cell can be listed more than once.
+	 *
+	 * @param since an earlier state of the arena
+	 * @return the changed cells or null if the changes are not known
+	 */
+	public int[] getChangedCells(Arena since);
+
+}
@@ -47,6 +47,8 @@ public class Neighborhood implements Serializable, Arena {
 	
 	private int[] grid;
 	
+	private transient int originX, originY;
+	
 	/**
 	 * Instantiates a new neighborhood.
 	 *
@@ -60,6 +62,37 @@ public class Neighborhood implements Serializable, Arena {
 		
 	}
 	
+	/**
+	 * Instantiates a new neighborhood with the given cells.
+	 *
+	 * @param size the size
+	 * @param grid the cells row by row, the array is not copied
+	 */
+	public Neighborhood(int size, int[] grid) {
+		
+		this.size = size;
+		
+		this.grid = grid;
+		
+	}
+	
+	/**
+	 * Instantiates a copy of the given neighborhood.
+	 *
+	 * @param n the neighborhood to copy
+	 */
+	public Neighborhood(Neighborhood n) {
+		
+		this.size = n.size;
+		
+		this.grid = n.grid.clone();
+		
+		this.originX = n.originX;
+		
+		this.originY = n.originY;
+		
+	}
+	
 	public String getRawGrid()
 	{
 		String gridStr = Arrays.toString(grid);
@@ -71,6 +104,253 @@ public class Neighborhood implements Serializable, Arena {
 		this.grid = rawGrid;
 	}
 
+	/**
+	 * Sets the grid from the text form returned by {@link #getRawGrid()}.
+	 *
+	 * @param rawGrid the cells separated by commas
+	 * @return false if the number of cells does not match the size
+	 */
+	public boolean setRawGrid(String rawGrid)
+	{
+		int[] result = new int[grid.length];
+		int count = 0, value = 0, sign = 1;
+		boolean digits = false;
+		
+		for (int i = 0; i <= rawGrid.length(); i++) {
+			
+			char c = i < rawGrid.length() ? rawGrid.charAt(i) : ',';
+			
+			if (c >= '0' && c <= '9') {
+				value = value * 10 + (c - '0');
+				digits = true;
+			} else if (c == '-') {
+				sign = -1;
+			} else if (c == ',') {
+				if (!digits || count == result.length)
+					return false;
+				result[count++] = sign * value;
+				value = 0;
+				sign = 1;
+				digits = false;
+			}
+		}
+		
+		if (count != result.length)
+			return false;
+		
+		grid = result;
+		return true;
+	}
+
+	private static final int FORMAT_FULL = 0;
+	
+	private static final int FORMAT_DELTA = 1;
+	
+	private static final int AGENT_SYMBOL = 7;
+	
+	/**
+	 * Returns the grid in the packed form. The cells are encoded row by row as
+	 * varint tokens; the lowest three bits of a token hold the negated cell code
+	 * (0 to 6) and the remaining bits the length of the run of equal cells minus
+	 * one. Cells with a friendly agent use the code 7 and store an index into the
+	 * table of agent ids that precedes the cells.
+	 *
+	 * @return the packed grid
+	 */
+	public byte[] getPackedGrid()
+	{
+		NewMessage.BinaryWriter writer = new NewMessage.BinaryWriter(grid.length / 2);
+		
+		writer.writeByte(FORMAT_FULL);
+		
+		writeCells(writer, null, 0, 0);
+		
+		return writer.toByteArray();
+	}
+
+	/**
+	 * Returns the difference to the previous neighborhood of the same agent in
+	 * the packed form. The neighborhood is shifted by the given offset (the
+	 * movement of the agent since the previous one); cells that are new or have
+	 * changed are encoded as in {@link #getPackedGrid()} with the number of
+	 * unchanged cells before each run.
+	 *
+	 * @param previous the previous neighborhood
+	 * @param dx the horizontal offset of the center
+	 * @param dy the vertical offset of the center
+	 * @return the packed difference or null if a full grid should be sent
+	 */
+	public byte[] getPackedDelta(Neighborhood previous, int dx, int dy)
+	{
+		if (previous == null || previous.size != size)
+			return null;
+		
+		int width = size * 2 + 1;
+		
+		if (Math.abs(dx) >= width || Math.abs(dy) >= width)
+			return null;
+		
+		NewMessage.BinaryWriter writer = new NewMessage.BinaryWriter(64);
+		
+		writer.writeByte(FORMAT_DELTA);
+		writer.writeSignedVarint(dx);
+		writer.writeSignedVarint(dy);
+		
+		writeCells(writer, previous, dx, dy);
+		
+		return writer.toByteArray();
+	}
+
+	/**
+	 * Sets the grid from the packed form. A packed difference is applied to the
+	 * current content of the neighborhood.
+	 *
+	 * @param packed the packed grid returned by {@link #getPackedGrid()} or
+	 * {@link #getPackedDelta(Neighborhood, int, int)}
+	 */
+	public void setRawGrid(byte[] packed)
+	{
+		NewMessage.BinaryReader reader = new NewMessage.BinaryReader(packed, 0, packed.length);
+		
+		int[] result = new int[grid.length];
+		boolean delta = reader.readByte() == FORMAT_DELTA;
+		
+		if (delta) {
+			int dx = reader.readSignedVarint();
+			int dy = reader.readSignedVarint();
+			int width = size * 2 + 1;
+			
+			for (int j = 0; j < width; j++) {
+				for (int i = 0; i < width; i++) {
+					int x = i + dx, y = j + dy;
+					if (x >= 0 && x < width && y >= 0 && y < width)
+						result[i + j * width] = grid[x + y * width];
+				}
+			}
+		}
+		
+		int[] agents = new int[reader.readVarint()];
+		
+		for (int i = 0; i < agents.length; i++)
+			agents[i] = reader.readVarint();
+		
+		int position = 0;
+		
+		while (position < result.length) {
+			
+			if (delta) {
+				position += reader.readVarint();
+				if (position >= result.length)
+					break;
+			}
+			
+			int token = reader.readVarint();
+			int symbol = token & 7;
+			int run = (token >>> 3) + 1;
+			
+			if (symbol == AGENT_SYMBOL) {
+				result[position++] = agents[token >>> 3];
+				continue;
+			}
+			
+			if (position + run > result.length)
+				throw new IllegalArgumentException("Invalid packed grid");
+			
+			Arrays.fill(result, position, position + run, -symbol);
+			position += run;
+		}
+		
+		grid = result;
+	}
+
+	/**
+	 * Writes the agent table and the cells that differ from the shifted previous
+	 * grid (all cells if there is no previous grid).
+	 */
+	private void writeCells(NewMessage.BinaryWriter writer, Neighborhood previous, int dx, int dy)
+	{
+		int width = size * 2 + 1;
+		boolean[] changed = new boolean[grid.length];
+		int[] agents = new int[grid.length];
+		int agentCount = 0;
+		
+		for (int j = 0; j < width; j++) {
+			for (int i = 0; i < width; i++) {
+				int k = i + j * width;
+				
+				if (previous == null) {
+					changed[k] = true;
+				} else {
+					int x = i + dx, y = j + dy;
+					changed[k] = x < 0 || x >= width || y < 0 || y >= width
+							|| previous.grid[x + y * width] != grid[k];
+				}
+				
+				if (changed[k] && grid[k] > 0)
+					agents[agentCount++] = grid[k];
+			}
+		}
+		
+		writer.writeVarint(agentCount);
+		
+		for (int i = 0; i < agentCount; i++)
+			writer.writeVarint(agents[i]);
+		
+		int skip = 0, agent = 0, k = 0;
+		
+		while (k < grid.length) {
+			
+			if (!changed[k]) {
+				skip++;
+				k++;
+				continue;
+			}
+			
+			if (previous != null)
+				writer.writeVarint(skip);
+			
+			skip = 0;
+			
+			if (grid[k] > 0) {
+				writer.writeVarint((agent++ << 3) | AGENT_SYMBOL);
+				k++;
+				continue;
+			}
+			
+			int run = 1;
+			
+			while (k + run < grid.length && changed[k + run] && grid[k + run] == grid[k])
+				run++;
+			
+			writer.writeVarint(((run - 1) << 3) | -grid[k]);
+			k += run;
+		}
+		
+		if (previous != null && skip > 0)
+			writer.writeVarint(skip);
+	}
+
+	/**
+	 * Sets the position of the center of the neighborhood in the field. The
+	 * position is only known on the server and is not transmitted.
+	 *
+	 * @param x the x
+	 * @param y the y
+	 */
+	public void setOrigin(int x, int y)
+	{
+		this.originX = x;
+		this.originY = y;
+	}
+
+	public int getOriginX() {
+		return originX;
+	}
+
+	public int getOriginY() {
+		return originY;
+	}
+
 	public int getSize() {
 		return size;
 	}
@@ -1,39 +1,178 @@
 package org.grid.protocol;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
-import java.util.List;
+import java.util.EnumSet;
+import java.util.Set;
 
 // TODO: Auto-generated Javadoc
 public class NewMessage {
 
-	protected ArrayList<String> data;
-	public static enum MessageType { REGISTER, ACKNOWLEDGE, INITIALIZE, TERMINATE, SCAN, STATE, MOVE, SEND, RECEIVE, UNKNOWN};
+	protected ArrayList<Object> data;
+
+	/**
+	 * Encoded frames of the message, shared by all sockets that send it
+	 */
+	volatile ByteBuffer textFrame, binaryFrame;
+
+	/**
+	 * The message in the binary format, shared by all channels that send it
+	 */
+	private volatile byte[] binary;
+	public static enum MessageType { REGISTER, ACKNOWLEDGE, INITIALIZE, TERMINATE, SCAN, STATE, MOVE, SEND, RECEIVE, MULTICAST, UNKNOWN};
 	public static enum Direction {NONE, UP, DOWN, LEFT, RIGHT};
+
+	/**
+	 * Optional protocol features that are negotiated when a client registers.
+	 * The client lists the features it supports in the register message and the
+	 * server replies with the ones it has enabled in the acknowledge message.
+	 */
+	public static enum Capability {
+
+		/**
+		 * Messages are encoded in the binary format (see {@link NewMessage#encodeBinary()})
+		 */
+		BINARY,
+
+		/**
+		 * State messages contain only the difference to the previous neighborhood
+		 * (requires {@link #BINARY})
+		 */
+		DELTA,
+
+		/**
+		 * The connection carries several agents, each in its own channel (requires
+		 * {@link #BINARY}, the number of channels is given in the register message)
+		 */
+		MULTIPLEX;
+
+		public String toString() {
+			return name().toLowerCase();
+		}
+
+		public static EnumSet<Capability> parse(String capabilities)
+		{
+			EnumSet<Capability> result = EnumSet.noneOf(Capability.class);
+
+			if (capabilities == null)
+				return result;
+
+			for (String c : capabilities.split(","))
+			{
+				try {
+					result.add(Capability.valueOf(c.trim().toUpperCase()));
+				} catch (IllegalArgumentException e) {
+					// unknown features are ignored
+				}
+			}
+
+			return result;
+		}
+
+		public static String format(Set<Capability> capabilities)
+		{
+			StringBuilder sb = new StringBuilder();
+			for (Capability c : capabilities)
+			{
+				if (sb.length() > 0)
+					sb.append(",");
+				sb.append(c.toString());
+			}
+			return sb.toString();
+		}
+	}
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static final int TAG_INT = 0;
+
+	private static final int TAG_STRING = 1;
+
+	private static final int TAG_BYTES = 2;
+
+	private static final int TAG_INTS = 3;
 	
 	public NewMessage(MessageType type)
 	{
-		data = new ArrayList<String>();
-		data.add(Integer.toString(type.ordinal()));
+		data = new ArrayList<Object>();
+		data.add(type.ordinal());
 	}
 	
 	public NewMessage(String message)
 	{
 		String[] messageParts = message.split(";");
-		data = new ArrayList<String>(Arrays.asList(messageParts));
+		data = new ArrayList<Object>(Arrays.asList((Object[]) messageParts));
+	}
+
+	/**
+	 * Decodes a message in the binary format.
+	 *
+	 * @param buffer the buffer
+	 * @param offset the offset of the message in the buffer
+	 * @param length the length of the message
+	 */
+	public NewMessage(byte[] buffer, int offset, int length)
+	{
+		BinaryReader reader = new BinaryReader(buffer, offset, length);
+
+		int type = reader.readByte();
+		int count = reader.readLength();
+
+		data = new ArrayList<Object>(count + 1);
+		data.add(type);
+
+		for (int i = 0; i < count; i++)
+		{
+			switch (reader.readByte())
+			{
+			case TAG_INT:
+				data.add(reader.readSignedVarint());
+				break;
+			case TAG_STRING:
+				data.add(new String(reader.readBytes(), UTF8));
+				break;
+			case TAG_BYTES:
+				data.add(reader.readBytes());
+				break;
+			case TAG_INTS: {
+				int[] values = new int[reader.readLength()];
+				for (int j = 0; j < values.length; j++)
+					values[j] = reader.readSignedVarint();
+				data.add(values);
+				break;
+			}
+			default:
+				throw new IllegalArgumentException("Unknown field type");
+			}
+		}
 	}
 	
 	protected NewMessage(NewMessage msg)
 	{
 		data = msg.data;
+		textFrame = msg.textFrame;
+		binaryFrame = msg.binaryFrame;
+		binary = msg.binary;
+	}
+
+	/**
+	 * Returns the message in the binary format, the message is only encoded once.
+	 */
+	byte[] getBinary()
+	{
+		byte[] result = binary;
+		if (result == null)
+			binary = result = encodeBinary();
+		return result;
 	}
 	
 	public MessageType getMessageType()
 	{
 		if(data != null && data.size() > 0)
 		{
-			MessageType type = MessageType.values()[Integer.parseInt(data.get(0))];
+			MessageType type = MessageType.values()[getInt(0)];
 			return type;
 		}
 		else
@@ -46,14 +185,105 @@ public class NewMessage {
 	public String encodeMessage()
 	{
 		StringBuilder sb = new StringBuilder();
-		for(String s : this.data)
+		for(Object s : this.data)
 		{
-			sb.append(s);
+			sb.append(toString(s));
 			sb.append(";");
 			
 		}
 		return sb.toString();
 	}
+
+	/**
+	 * Encodes the message in the binary format. The first byte is the type of the
+	 * message, followed by the number of fields and the fields. Each field starts
+	 * with a type byte; integers are written as zig-zag varints, strings and
+	 * byte arrays as a varint length followed by the raw bytes.
+	 *
+	 * @return the encoded message
+	 */
+	public byte[] encodeBinary()
+	{
+		int capacity = 16;
+
+		for (Object o : data)
+			capacity += o instanceof byte[] ? ((byte[]) o).length + 8 : 8;
+
+		BinaryWriter writer = new BinaryWriter(capacity);
+
+		writer.writeByte(getInt(0));
+		writer.writeVarint(data.size() - 1);
+
+		for (int i = 1; i < data.size(); i++)
+		{
+			Object o = data.get(i);
+
+			if (o instanceof Integer)
+			{
+				writer.writeByte(TAG_INT);
+				writer.writeSignedVarint((Integer) o);
+			}
+			else if (o instanceof byte[])
+			{
+				writer.writeByte(TAG_BYTES);
+				writer.writeBytes((byte[]) o);
+			}
+			else if (o instanceof Neighborhood)
+			{
+				writer.writeByte(TAG_BYTES);
+				writer.writeBytes(((Neighborhood) o).getPackedGrid());
+			}
+			else if (o instanceof int[])
+			{
+				int[] values = (int[]) o;
+				writer.writeByte(TAG_INTS);
+				writer.writeVarint(values.length);
+				for (int v : values)
+					writer.writeSignedVarint(v);
+			}
+			else
+			{
+				writer.writeByte(TAG_STRING);
+				writer.writeBytes(toString(o).getBytes(UTF8));
+			}
+		}
+
+		return writer.toByteArray();
+	}
+
+	protected int getInt(int index)
+	{
+		Object o = data.get(index);
+
+		if (o instanceof Integer)
+			return (Integer) o;
+
+		int value = Integer.parseInt(toString(o));
+		data.set(index, value);
+		return value;
+	}
+
+	protected String getString(int index)
+	{
+		return toString(data.get(index));
+	}
+
+	private static String toString(Object o)
+	{
+		if (o instanceof Neighborhood)
+			return ((Neighborhood) o).getRawGrid();
+
+		if (o instanceof int[])
+		{
+			String str = Arrays.toString((int[]) o);
+			return str.substring(1, str.length() - 1);
+		}
+
+		if (o instanceof byte[])
+			return new String((byte[]) o);
+
+		return String.valueOf(o);
+	}
 	
 	public static class RegisterMessage extends NewMessage
 	{
@@ -63,6 +293,20 @@ public class NewMessage {
 			data.add(passphrase);
 		}
 		
+		public RegisterMessage(String team, String passphrase, Set<Capability> capabilities) {
+			this(team, passphrase);
+			data.add(Capability.format(capabilities));
+		}
+
+		/**
+		 * Instantiates a register message for a connection that carries the given
+		 * number of agents (see {@link Capability#MULTIPLEX}).
+		 */
+		public RegisterMessage(String team, String passphrase, Set<Capability> capabilities, int channels) {
+			this(team, passphrase, capabilities);
+			data.add(channels);
+		}
+
 		public RegisterMessage(NewMessage msg)
 		{
 			super(msg);
@@ -70,21 +314,44 @@ public class NewMessage {
 		
 		public String getTeam()
 		{
-			if(data != null && data.size() == 3)
+			if(data != null && data.size() >= 3 && data.size() <= 5)
 			{
-				return data.get(1);
+				return getString(1);
 			}
 			return null;
 		}
 		
 		public String getPassphrase()
 		{
-			if(data != null && data.size() == 3)
+			if(data != null && data.size() >= 3 && data.size() <= 5)
 			{
-				return data.get(2);
+				return getString(2);
 			}
 			return null;
 		}
+
+		public EnumSet<Capability> getCapabilities()
+		{
+			if(data != null && (data.size() == 4 || data.size() == 5))
+			{
+				return Capability.parse(getString(3));
+			}
+			return EnumSet.noneOf(Capability.class);
+		}
+
+		/**
+		 * Returns the number of agents carried by the connection.
+		 *
+		 * @return the number of channels or 0 if the connection is not multiplexed
+		 */
+		public int getChannels()
+		{
+			if(data != null && data.size() == 5)
+			{
+				return getInt(4);
+			}
+			return 0;
+		}
 	}
 	
 	public static class AcknowledgeMessage extends NewMessage
@@ -92,15 +359,34 @@ public class NewMessage {
 		public AcknowledgeMessage() {
 			super(MessageType.ACKNOWLEDGE);
 		}
+
+		public AcknowledgeMessage(Set<Capability> capabilities) {
+			super(MessageType.ACKNOWLEDGE);
+			data.add(Capability.format(capabilities));
+		}
+
+		public AcknowledgeMessage(NewMessage msg)
+		{
+			super(msg);
+		}
+
+		public EnumSet<Capability> getCapabilities()
+		{
+			if(data != null && data.size() == 2)
+			{
+				return Capability.parse(getString(1));
+			}
+			return EnumSet.noneOf(Capability.class);
+		}
 	}
 	
 	public static class InitializeMessage extends NewMessage
 	{
 		public InitializeMessage(int id, int maxMessageSize, int gameSpeed) {
 			super(MessageType.INITIALIZE);
-			data.add(Integer.toString(id));
-			data.add(Integer.toString(maxMessageSize));
-			data.add(Integer.toString(gameSpeed));
+			data.add(id);
+			data.add(maxMessageSize);
+			data.add(gameSpeed);
 		}
 		
 		public InitializeMessage(NewMessage msg)
@@ -112,7 +398,7 @@ public class NewMessage {
 		{
 			if(data != null && data.size() == 4)
 			{
-				return Integer.parseInt(data.get(1));
+				return getInt(1);
 			}
 			return -1;
 		}
@@ -121,7 +407,7 @@ public class NewMessage {
 		{
 			if(data != null && data.size() == 4)
 			{
-				return Integer.parseInt(data.get(2));
+				return getInt(2);
 			}
 			return -1;
 		}
@@ -130,7 +416,7 @@ public class NewMessage {
 		{
 			if(data != null && data.size() == 4)
 			{
-				return Integer.parseInt(data.get(3));
+				return getInt(3);
 			}
 			return -1;
 		}
@@ -147,7 +433,7 @@ public class NewMessage {
 	{
 		public ScanMessage(int stamp) {
 			super(MessageType.SCAN);
-			data.add(Integer.toString(stamp));
+			data.add(stamp);
 		}
 		
 		public ScanMessage(NewMessage msg)
@@ -159,7 +445,7 @@ public class NewMessage {
 		{
 			if(data != null && data.size() == 2)
 			{
-				return Integer.parseInt(data.get(1));
+				return getInt(1);
 			}
 			return -1;
 		}
@@ -169,10 +455,27 @@ public class NewMessage {
 	{
 		public StateMessage(Direction direction, Neighborhood neighborhood, boolean hasFlag) {
 			super(MessageType.STATE);
-			data.add(Integer.toString(direction.ordinal()));
-			data.add(Integer.toString((neighborhood.getSize())));
-			data.add(neighborhood.getRawGrid());
-			data.add(hasFlag ? "1" : "0");
+			data.add(direction.ordinal());
+			data.add(neighborhood.getSize());
+			data.add(neighborhood);
+			data.add(hasFlag ? 1 : 0);
+		}
+
+		/**
+		 * Instantiates a new state message with a packed neighborhood grid or a
+		 * packed difference to the previous one.
+		 *
+		 * @param direction the direction
+		 * @param size the size of the neighborhood
+		 * @param packed the packed grid
+		 * @param hasFlag does the agent carry a flag
+		 */
+		public StateMessage(Direction direction, int size, byte[] packed, boolean hasFlag) {
+			super(MessageType.STATE);
+			data.add(direction.ordinal());
+			data.add(size);
+			data.add(packed);
+			data.add(hasFlag ? 1 : 0);
 		}
 		
 		public StateMessage(NewMessage msg)
@@ -184,7 +487,7 @@ public class NewMessage {
 		{
 			if(data != null && data.size() == 5)
 			{
-				Direction dir = Direction.values()[Integer.parseInt(data.get(1))];
+				Direction dir = Direction.values()[getInt(1)];
 				return dir;
 			}
 			throw new Exception("Invalid StateMessage!");
@@ -194,7 +497,7 @@ public class NewMessage {
 		{
 			if(data != null && data.size() == 5)
 			{
-				return Integer.parseInt(data.get(2));
+				return getInt(2);
 			}
 			else
 			{
@@ -204,24 +507,43 @@ public class NewMessage {
 		
 		public Neighborhood getNeighborhood()
 		{	
+			return getNeighborhood(null);
+		}
+
+		/**
+		 * Returns the neighborhood. If the message contains a packed grid or a
+		 * packed difference, the given neighborhood from the previous state is
+		 * updated in place and returned.
+		 *
+		 * @param previous the neighborhood from the previous state or null
+		 * @return the neighborhood
+		 */
+		public Neighborhood getNeighborhood(Neighborhood previous)
+		{
 			if(data != null && data.size() == 5)
 			{
-				int size = Integer.parseInt(data.get(2));
-				int[] result = new int[(size * 2 + 1) * (size * 2 + 1)];
-				String[] nArray = data.get(3).split(", ");
-				if(result.length == nArray.length)
+				int size = getInt(2);
+				Object grid = data.get(3);
+
+				if (grid instanceof Neighborhood)
+					return (Neighborhood) grid;
+
+				Neighborhood n = new Neighborhood(size);
+
+				if (grid instanceof byte[])
+				{
+					if (previous != null && previous.getSize() == size)
+						n = previous;
+					n.setRawGrid((byte[]) grid);
+				}
+				else if (grid instanceof int[] && ((int[]) grid).length == n.getWidth() * n.getHeight())
 				{
-					for(int i = 0 ; i < result.length; i++)
-					{
-						result[i] = Integer.parseInt(nArray[i]);
-					}
+					n.setRawGrid((int[]) grid);
 				}
-				else
+				else if (grid instanceof int[] || !n.setRawGrid(getString(3)))
 				{
 					System.out.println("getNeighborhood() - Neighborhood is not the right size");
 				}
-				Neighborhood n = new Neighborhood(size);
-				n.setRawGrid(result);
 				return n;
 			}
 			else
@@ -234,10 +556,7 @@ public class NewMessage {
 		{
 			if(data != null && data.size() == 5)
 			{
-				if(data.get(4).equals("0"))
-					return false;
-				else
-					return true;
+				return getInt(4) != 0;
 			}
 			else
 			{
@@ -251,7 +570,7 @@ public class NewMessage {
 	{
 		public MoveMessage(Direction direction) {
 			super(MessageType.MOVE);
-			data.add(Integer.toString(direction.ordinal()));
+			data.add(direction.ordinal());
 		}
 		
 		public MoveMessage(NewMessage msg)
@@ -263,7 +582,7 @@ public class NewMessage {
 		{
 			if(data != null && data.size() == 2)
 			{
-				Direction dir = Direction.values()[Integer.parseInt(data.get(1))];
+				Direction dir = Direction.values()[getInt(1)];
 				return dir;
 			}
 			System.err.println("MoveMessage.getDirection - Data is null or not correnct size");
@@ -275,8 +594,8 @@ public class NewMessage {
 	{
 		public SendMessage(int to, byte[] message) {
 			super(MessageType.SEND);
-			data.add(Integer.toString(to));
-			data.add(new String(message));
+			data.add(to);
+			data.add(message);
 		}
 		
 		public SendMessage(NewMessage msg)
@@ -288,34 +607,20 @@ public class NewMessage {
 		{
 			if(data != null && data.size() >= 2)
 			{
-				return Integer.parseInt(data.get(1));
+				return getInt(1);
 			}
 			return -1;
 		}
 		
+		/**
+		 * Returns the payload. The array is shared with the message and must not
+		 * be modified.
+		 *
+		 * @return the payload
+		 */
 		public byte[] getMessage()
 		{
-			if(data != null && data.size() >= 3)
-			{
-				List<Byte> result = new ArrayList<Byte>();
-				
-				for(int i = 2; i < data.size(); i++)
-				{
-					byte[] tmp = data.get(i).getBytes();
-					for(byte b : tmp)
-					{
-						result.add(Byte.valueOf(b));
-					}
-					
-					//add separator ";" to all but last item
-					if(i != data.size() - 1)
-					{
-						result.add(Byte.valueOf("59"));
-					}
-				}
-				return toByteArray(result);
-			}
-			return new byte[]{};
+			return getPayload(2);
 		}
 	}
 	
@@ -323,8 +628,8 @@ public class NewMessage {
 	{
 		public ReceiveMessage(int from, byte[] message) {
 			super(MessageType.RECEIVE);
-			data.add(Integer.toString(from));
-			data.add(new String(message));
+			data.add(from);
+			data.add(message);
 		}
 		
 		public ReceiveMessage(NewMessage msg)
@@ -336,43 +641,242 @@ public class NewMessage {
 		{
 			if(data != null && data.size() >= 2)
 			{
-				return Integer.parseInt(data.get(1));
+				return getInt(1);
 			}
 			return -1;
 		}
 		
+		/**
+		 * Returns the payload. The array is shared with the message and must not
+		 * be modified.
+		 *
+		 * @return the payload
+		 */
+		public byte[] getMessage()
+		{
+			return getPayload(2);
+		}
+	}
+	
+	/**
+	 * A message that is sent to several agents of the same team. The payload is
+	 * uploaded once and delivered by the server to every recipient as a
+	 * {@link ReceiveMessage}. An empty list of recipients means all agents of the
+	 * team that are in range.
+	 */
+	public static class MulticastMessage extends NewMessage
+	{
+		public MulticastMessage(int[] to, byte[] message) {
+			super(MessageType.MULTICAST);
+			data.add(to);
+			data.add(message);
+		}
+
+		public MulticastMessage(NewMessage msg)
+		{
+			super(msg);
+		}
+
+		public int[] getRecipients()
+		{
+			if(data == null || data.size() < 2)
+				return new int[0];
+
+			Object o = data.get(1);
+
+			if (o instanceof int[])
+				return (int[]) o;
+
+			String list = getString(1).trim();
+
+			if (list.length() == 0)
+				return new int[0];
+
+			String[] parts = list.split(",");
+			int[] result = new int[parts.length];
+
+			for (int i = 0; i < parts.length; i++)
+				result[i] = Integer.parseInt(parts[i].trim());
+
+			data.set(1, result);
+			return result;
+		}
+
+		/**
+		 * Returns the payload. The array is shared with the message and must not
+		 * be modified.
+		 *
+		 * @return the payload
+		 */
 		public byte[] getMessage()
 		{
-			if(data != null && data.size() >= 3)
+			return getPayload(2);
+		}
+	}
+
+	/**
+	 * Returns the byte array payload that starts at the given field. Messages in
+	 * the text format may have been split at the separators in the payload, so the
+	 * remaining fields are joined again.
+	 */
+	protected byte[] getPayload(int index)
+	{
+		if(data == null || data.size() <= index)
+			return new byte[]{};
+
+		Object o = data.get(index);
+
+		if (data.size() == index + 1)
+		{
+			if (o instanceof byte[])
+				return (byte[]) o;
+
+			return getString(index).getBytes();
+		}
+
+		StringBuilder sb = new StringBuilder(getString(index));
+
+		for(int i = index + 1; i < data.size(); i++)
+		{
+			sb.append(";");
+			sb.append(getString(i));
+		}
+
+		return sb.toString().getBytes();
+	}
+
+	/**
+	 * Growable buffer for writing messages in the binary format.
+	 */
+	public static class BinaryWriter
+	{
+		private byte[] buffer;
+
+		private int length = 0;
+
+		public BinaryWriter(int capacity)
+		{
+			buffer = new byte[Math.max(16, capacity)];
+		}
+
+		private void ensure(int more)
+		{
+			if (length + more > buffer.length)
+				buffer = Arrays.copyOf(buffer, Math.max(length + more, buffer.length * 2));
+		}
+
+		public void writeByte(int value)
+		{
+			ensure(1);
+			buffer[length++] = (byte) value;
+		}
+
+		public void writeVarint(int value)
+		{
+			ensure(5);
+			while ((value & ~0x7F) != 0)
 			{
-				List<Byte> result = new ArrayList<Byte>();
-				
-				for(int i = 2; i < data.size(); i++)
-				{
-					byte[] tmp = data.get(i).getBytes();
-					for(byte b : tmp)
-					{
-						result.add(Byte.valueOf(b));
-					}
-					
-					//add separator ";" to all but last item
-					if(i != data.size() - 1)
-					{
-						result.add(Byte.valueOf("59"));
-					}
-				}
-				return toByteArray(result);
+				buffer[length++] = (byte) ((value & 0x7F) | 0x80);
+				value >>>= 7;
 			}
-			return new byte[]{};
+			buffer[length++] = (byte) value;
+		}
+
+		public void writeSignedVarint(int value)
+		{
+			writeVarint((value << 1) ^ (value >> 31));
+		}
+
+		public void writeBytes(byte[] bytes)
+		{
+			writeVarint(bytes.length);
+			ensure(bytes.length);
+			System.arraycopy(bytes, 0, buffer, length, bytes.length);
+			length += bytes.length;
+		}
+
+		public int size()
+		{
+			return length;
+		}
+
+		public byte[] toByteArray()
+		{
+			return Arrays.copyOf(buffer, length);
 		}
 	}
-	
-	byte[] toByteArray(List<Byte> list){
-	  byte[] ret = new byte[list.size()];
-	  for(int i = 0;i < ret.length;i++)
-	  {
-	    ret[i] = list.get(i);
-	  }
-	  return ret;
+
+	/**
+	 * Reader for messages in the binary format.
+	 */
+	public static class BinaryReader
+	{
+		private byte[] buffer;
+
+		private int position, end;
+
+		public BinaryReader(byte[] buffer, int offset, int length)
+		{
+			this.buffer = buffer;
+			this.position = offset;
+			this.end = offset + length;
+		}
+
+		public boolean hasRemaining()
+		{
+			return position < end;
+		}
+
+		public int getPosition()
+		{
+			return position;
+		}
+
+		public int readByte()
+		{
+			if (position >= end)
+				throw new IllegalArgumentException("Message too short");
+			return buffer[position++] & 0xFF;
+		}
+
+		public int readVarint()
+		{
+			int value = 0;
+			for (int shift = 0; shift < 35; shift += 7)
+			{
+				int b = readByte();
+				value |= (b & 0x7F) << shift;
+				if ((b & 0x80) == 0)
+					return value;
+			}
+			throw new IllegalArgumentException("Malformed varint");
+		}
+
+		public int readSignedVarint()
+		{
+			int value = readVarint();
+			return (value >>> 1) ^ -(value & 1);
+		}
+
+		/**
+		 * Reads the number of elements that follow. Every element takes at
+		 * least one byte, so a number larger than the remaining bytes is
+		 * rejected before anything is allocated for it.
+		 */
+		public int readLength()
+		{
+			int length = readVarint();
+			if (length < 0 || length > end - position)
+				throw new IllegalArgumentException("Message too short");
+			return length;
+		}
+
+		public byte[] readBytes()
+		{
+			int length = readLength();
+			byte[] bytes = Arrays.copyOfRange(buffer, position, position + length);
+			position += length;
+			return bytes;
+		}
 	}
 }
@@ -0,0 +1,239 @@
+/*
+ *  AgentField - a simple capture-the-flag simulation for distributed intelligence
+ *  Copyright (C) 2011 Luka Cehovin <http://vicos.fri.uni-lj.si/lukacu>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.grid.protocol;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Handles input and output of many {@link ProtocolSocket} instances with a
+ * small fixed number of threads. Each socket is assigned to one of the worker
+ * threads that reads and writes its frames. The decoded messages are handled
+ * by a separate pool of handler threads, so a slow handler does not delay the
+ * input and output of the other sockets of the worker. The messages of a
+ * socket are still handled one at a time and in order.
+ */
+public class ProtocolSelector {
+
+	class Worker implements Runnable {
+
+		private Selector selector;
+
+		private ConcurrentLinkedQueue<ProtocolSocket> registrations = new ConcurrentLinkedQueue<ProtocolSocket>();
+
+		private ConcurrentLinkedQueue<ProtocolSocket> writes = new ConcurrentLinkedQueue<ProtocolSocket>();
+
+		public Worker() throws IOException {
+			selector = Selector.open();
+		}
+
+		public void register(ProtocolSocket socket) {
+			registrations.add(socket);
+			selector.wakeup();
+		}
+
+		public void requestWrite(ProtocolSocket socket) {
+			writes.add(socket);
+			selector.wakeup();
+		}
+
+		@Override
+		public void run() {
+
+			while (true) {
+
+				try {
+					selector.select();
+				} catch (IOException e) {
+					e.printStackTrace();
+					continue;
+				}
+
+				while (true) {
+
+					ProtocolSocket socket = registrations.poll();
+
+					if (socket == null)
+						break;
+
+					try {
+						socket.registered(socket.getChannel().register(selector,
+								SelectionKey.OP_READ, socket));
+					} catch (ClosedChannelException e) {
+						socket.close();
+					}
+				}
+
+				while (true) {
+
+					ProtocolSocket socket = writes.poll();
+
+					if (socket == null)
+						break;
+
+					SelectionKey key = socket.getChannel().keyFor(selector);
+
+					if (key != null && key.isValid())
+						key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+				}
+
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+
+				while (keys.hasNext()) {
+
+					SelectionKey key = keys.next();
+					keys.remove();
+
+					ProtocolSocket socket = (ProtocolSocket) key.attachment();
+
+					try {
+
+						if (key.isValid() && key.isReadable())
+							socket.readChannel();
+
+						if (key.isValid() && key.isWritable()) {
+							if (socket.writeChannel() && key.isValid())
+								key.interestOps(SelectionKey.OP_READ);
+						}
+
+					} catch (Exception e) {
+						e.printStackTrace();
+						socket.close();
+					}
+
+				}
+
+			}
+
+		}
+
+	}
+
+	private Worker[] workers;
+
+	private int next = 0;
+
+	private ExecutorService handlers;
+
+	/**
+	 * Instantiates a new selector and starts its worker threads. The number
+	 * of handler threads is the same as the number of worker threads.
+	 *
+	 * @param threads
+	 *            the number of worker threads
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	public ProtocolSelector(int threads) throws IOException {
+
+		this(threads, threads);
+
+	}
+
+	/**
+	 * Instantiates a new selector and starts its worker and handler threads.
+	 *
+	 * @param threads
+	 *            the number of worker threads
+	 * @param handlers
+	 *            the number of threads that handle the decoded messages
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	public ProtocolSelector(int threads, int handlers) throws IOException {
+
+		this.handlers = Executors.newFixedThreadPool(Math.max(1, handlers), new ThreadFactory() {
+
+			private int count = 0;
+
+			@Override
+			public synchronized Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "Protocol handler " + count++);
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+
+		workers = new Worker[Math.max(1, threads)];
+
+		for (int i = 0; i < workers.length; i++) {
+			workers[i] = new Worker();
+
+			Thread thread = new Thread(workers[i], "Protocol selector " + i);
+			thread.setDaemon(true);
+			thread.start();
+		}
+
+	}
+
+	/**
+	 * Assigns the socket to one of the workers.
+	 *
+	 * @param socket
+	 *            the socket
+	 */
+	void register(ProtocolSocket socket) {
+
+		Worker worker;
+
+		synchronized (this) {
+			worker = workers[next];
+			next = (next + 1) % workers.length;
+		}
+
+		socket.setWorker(worker);
+
+		worker.register(socket);
+
+	}
+
+	/**
+	 * Runs a task on one of the handler threads.
+	 *
+	 * @param task
+	 *            the task
+	 */
+	void execute(Runnable task) {
+
+		handlers.execute(task);
+
+	}
+
+	/**
+	 * Requests that the queued frames of the socket are written.
+	 *
+	 * @param socket
+	 *            the socket
+	 */
+	void requestWrite(ProtocolSocket socket) {
+
+		Worker worker = socket.getWorker();
+
+		if (worker != null)
+			worker.requestWrite(socket);
+
+	}
+
+}
@@ -13,26 +13,54 @@
  *  GNU General Public License for more details.
  *
  *  You should have received a copy of the GNU General Public License
- *  along with this program. If not, see <http://www.gnu.org/licenses/>. 
+ *  along with this program. If not, see <http://www.gnu.org/licenses/>.
  */
 package org.grid.protocol;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.UTFDataFormatException;
 import java.net.InetAddress;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.Hashtable;
 import java.util.concurrent.ConcurrentLinkedQueue;
-
-// TODO: Auto-generated Javadoc
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A message based connection. Messages are transferred as frames in the format
+ * of {@link DataOutputStream#writeUTF(String)}. A frame with a zero length
+ * header is an extended frame: it is followed by a frame kind byte, the length
+ * of the body as a varint and the body (used for messages in the binary
+ * format and for text messages that are too long for a regular frame). Frames
+ * that do not fit into the input buffer are read directly into a buffer of
+ * their own, so large messages are not copied while they arrive. Outgoing
+ * frames are always encoded into a single buffer. The socket either uses two
+ * threads (one for input and one for output) or is driven by a shared
+ * {@link ProtocolSelector}.
+ * <p>
+ * A connection can carry several channels. A channel is a protocol socket
+ * without a socket of its own, its messages are sent over the connection in
+ * channel frames (an extended frame with the id of the channel as a varint
+ * followed by a message in the binary format) and are delivered to the channel
+ * with the same id on the other side.
+ */
 public class ProtocolSocket {
 
 	public static class AppendableDataOutputStream extends DataOutputStream {
 
 		/**
 		 * Instantiates a new appendable data output stream.
-		 * 
+		 *
 		 * @param out
 		 *            the out
 		 * @throws IOException
@@ -43,27 +71,92 @@ public class ProtocolSocket {
 		}
 	}
 
-	private DataInputStream in;
+	/**
+	 * A decoded message and the id of the channel it was sent to.
+	 */
+	private static class Received {
+
+		private int channel;
+
+		private NewMessage message;
+
+		public Received(int channel, NewMessage message) {
+			this.channel = channel;
+			this.message = message;
+		}
+	}
+
+	private static final int BUFFER_SIZE = 8192;
+
+	private static final int FRAME_BINARY = 1;
+
+	private static final int FRAME_TEXT = 2;
 
-	private DataOutputStream out;
+	private static final int FRAME_CHANNEL = 3;
+
+	private static final int DEFAULT_MAX_FRAME_SIZE = 64 * 1024 * 1024;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private InputStream in;
+
+	private OutputStream out;
 
 	private Thread inputThread;
 
 	private Thread outputThread;
 
-	private boolean running = true;
+	private volatile boolean running = true;
 
 	private boolean debug = false;
 
+	private volatile boolean binary = false;
+
 	private ConcurrentLinkedQueue<String> inQueue = new ConcurrentLinkedQueue<String>();
 
-	private ConcurrentLinkedQueue<String> outQueue = new ConcurrentLinkedQueue<String>();
+	private ConcurrentLinkedQueue<ByteBuffer> outQueue = new ConcurrentLinkedQueue<ByteBuffer>();
+
+	private ByteBuffer input = ByteBuffer.allocate(BUFFER_SIZE);
+
+	private ByteBuffer largeFrame = null;
+
+	private int largeKind;
+
+	private volatile int maxFrameSize = DEFAULT_MAX_FRAME_SIZE;
 
 	private Socket socket;
 
+	private SocketChannel channel;
+
+	private ProtocolSelector selector;
+
+	private ProtocolSelector.Worker worker;
+
+	private SelectionKey key;
+
+	private AtomicBoolean writeScheduled = new AtomicBoolean(false);
+
+	// decoded messages waiting for a handler thread of the selector
+	private ConcurrentLinkedQueue<Received> received = new ConcurrentLinkedQueue<Received>();
+
+	private AtomicBoolean handleScheduled = new AtomicBoolean(false);
+
+	private AtomicBoolean started = new AtomicBoolean(false);
+
+	private AtomicBoolean closed = new AtomicBoolean(false);
+
+	// the connection that carries this channel
+	private ProtocolSocket connection = null;
+
+	private int channelId = -1;
+
+	// the channels carried by this connection
+	private Hashtable<Integer, ProtocolSocket> channels = new Hashtable<Integer, ProtocolSocket>();
+
 	/**
-	 * Instantiates a new protocol socket.
-	 * 
+	 * Instantiates a new protocol socket that uses its own input and output
+	 * threads.
+	 *
 	 * @param sck
 	 *            the socket
 	 * @throws IOException
@@ -71,39 +164,96 @@ public class ProtocolSocket {
 	 */
 	public ProtocolSocket(Socket sck) throws IOException {
 
+		this(sck, true);
+
+	}
+
+	/**
+	 * Instantiates a new protocol socket that uses its own input and output
+	 * threads. If the socket is not started, nothing is read or written until
+	 * {@link #start()} is called, so a subclass can finish its construction
+	 * before the first message is handled.
+	 *
+	 * @param sck
+	 *            the socket
+	 * @param start
+	 *            true to start the threads immediately
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	protected ProtocolSocket(Socket sck, boolean start) throws IOException {
+
 		this.socket = sck;
 
+		if (start)
+			start();
+
+	}
+
+	/**
+	 * Instantiates a new protocol socket that is driven by the given selector
+	 * instead of its own threads. The socket is handed to the selector by
+	 * {@link #start()}.
+	 *
+	 * @param channel
+	 *            the connected channel
+	 * @param selector
+	 *            the selector that handles input and output of the socket
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	public ProtocolSocket(SocketChannel channel, ProtocolSelector selector)
+			throws IOException {
+
+		this.channel = channel;
+		this.socket = channel.socket();
+		this.selector = selector;
+
+		channel.configureBlocking(false);
+
+	}
+
+	/**
+	 * Starts reading and writing: either starts the threads of the socket or
+	 * hands the socket to its selector. Calling it more than once or on a
+	 * channel has no effect.
+	 */
+	public void start() {
+
+		if (connection != null || !started.compareAndSet(false, true))
+			return;
+
+		if (selector != null) {
+			selector.register(this);
+			return;
+		}
+
 		inputThread = new Thread(new Runnable() {
 
 			@Override
 			public void run() {
 
 				try {
-					in = new DataInputStream(socket.getInputStream());
+					in = socket.getInputStream();
 				} catch (IOException e1) {
 					return;
 				}
 
 				while (running) {
 
-					String message = "";
 					try {
-						message = in.readUTF();
+
+						if (readInput() < 0) {
+							close();
+							break;
+						}
+
 					} catch (Exception e) {
 						if (debug)
 							e.printStackTrace();
 						close();
 					}
 
-					if (message == null || message.length() == 0)
-						continue;
-
-					if (debug) {
-						System.err.println("*** MESSAGE INCOMING FROM " + getRemotePort() + " <<< "
-								+ message + " <<<");
-					}
-					
-					handleMessage(message);
 				}
 			}
 
@@ -117,7 +267,7 @@ public class ProtocolSocket {
 			public void run() {
 
 				try {
-					out = new DataOutputStream(socket.getOutputStream());
+					out = socket.getOutputStream();
 				} catch (IOException e1) {
 					return;
 				}
@@ -126,7 +276,7 @@ public class ProtocolSocket {
 
 					try {
 						synchronized (outQueue) {
-							while (outQueue.isEmpty()) {
+							while (outQueue.isEmpty() && running) {
 								try {
 									outQueue.wait();
 								} catch (InterruptedException e) {
@@ -134,15 +284,15 @@ public class ProtocolSocket {
 							}
 						}
 
-						String message = outQueue.poll();
+						ByteBuffer frame = outQueue.poll();
 
-						if (debug)
-							System.err.println("*** PROTOCOL OUTGOING FOR " + getRemotePort() +" >>> "
-									+ message + " >>>");
+						if (frame == null)
+							continue;
 
-						out.writeUTF(message);
+						out.write(frame.array(), frame.position(), frame.remaining());
 
-						out.flush();
+						if (outQueue.isEmpty())
+							out.flush();
 
 					} catch (IOException e) {
 						if (debug)
@@ -161,9 +311,47 @@ public class ProtocolSocket {
 		outputThread.start();
 	}
 
+	/**
+	 * Instantiates a new channel that is carried by the given connection.
+	 * Channels always use the binary format.
+	 *
+	 * @param connection
+	 *            the connection
+	 * @param id
+	 *            the id of the channel, unique within the connection
+	 */
+	public ProtocolSocket(ProtocolSocket connection, int id) {
+
+		this.connection = connection;
+		this.channelId = id;
+		this.socket = connection.socket;
+		this.binary = true;
+
+		connection.channels.put(id, this);
+
+		// the connection may have been closed in the meantime
+		if (connection.closed.get())
+			close();
+
+	}
+
+	/**
+	 * Checks if the socket (or the channel) has been closed.
+	 */
+	public boolean isClosed() {
+		return closed.get();
+	}
+
+	/**
+	 * Returns the id of the channel or -1 if the socket is not a channel.
+	 */
+	public int getChannelId() {
+		return channelId;
+	}
+
 	/**
 	 * Receive message.
-	 * 
+	 *
 	 * @return the message
 	 */
 	public String receiveMessage() {
@@ -181,7 +369,7 @@ public class ProtocolSocket {
 
 	/**
 	 * Wait message.
-	 * 
+	 *
 	 * @return the message
 	 */
 	public String waitMessage() {
@@ -204,7 +392,7 @@ public class ProtocolSocket {
 
 	/**
 	 * Send message.
-	 * 
+	 *
 	 * @param msg
 	 *            the msg
 	 */
@@ -213,10 +401,110 @@ public class ProtocolSocket {
 		if (msg == null || msg.length() == 0)
 			return;
 
-		synchronized (outQueue) {
+		if (debug)
+			System.err.println("*** PROTOCOL OUTGOING FOR " + getRemotePort() +" >>> "
+					+ msg + " >>>");
 
-			outQueue.add(msg);
-			outQueue.notifyAll();
+		if (connection != null) {
+			sendMessage(new NewMessage(msg));
+			return;
+		}
+
+		try {
+			sendFrame(encodeFrame(msg));
+		} catch (IOException e) {
+			if (debug)
+				e.printStackTrace();
+		}
+
+	}
+
+	/**
+	 * Send message. The message is encoded in the binary format if it was
+	 * enabled with {@link #setBinary(boolean)}. The encoded frame is kept with
+	 * the message, so a message that is sent to many sockets is only encoded
+	 * once per format.
+	 *
+	 * @param msg
+	 *            the msg
+	 */
+	public void sendMessage(NewMessage msg) {
+
+		if (debug)
+			System.err.println("*** PROTOCOL OUTGOING FOR " + getRemotePort() +" >>> "
+					+ msg.encodeMessage() + " >>>");
+
+		try {
+
+			ByteBuffer frame;
+
+			if (connection != null) {
+				frame = encodeChannelFrame(channelId, msg.getBinary());
+			} else if (binary) {
+				frame = msg.binaryFrame;
+				if (frame == null)
+					msg.binaryFrame = frame = encodeFrame(FRAME_BINARY, msg.getBinary());
+			} else {
+				frame = msg.textFrame;
+				if (frame == null)
+					msg.textFrame = frame = encodeFrame(msg.encodeMessage());
+			}
+
+			sendFrame(frame.duplicate());
+
+		} catch (IOException e) {
+			if (debug)
+				e.printStackTrace();
+		}
+
+	}
+
+	/**
+	 * Enables or disables the binary encoding of outgoing messages. Incoming
+	 * messages are accepted in both formats.
+	 *
+	 * @param binary
+	 *            true to encode messages in the binary format
+	 */
+	public void setBinary(boolean binary) {
+		this.binary = binary || connection != null;
+	}
+
+	public boolean isBinary() {
+		return binary;
+	}
+
+	/**
+	 * Queues an encoded frame for sending.
+	 *
+	 * @param frame
+	 *            the frame
+	 */
+	protected void sendFrame(ByteBuffer frame) {
+
+		if (!running)
+			return;
+
+		if (connection != null) {
+			connection.sendFrame(frame);
+			return;
+		}
+
+		if (selector == null) {
+
+			synchronized (outQueue) {
+
+				outQueue.add(frame);
+				outQueue.notifyAll();
+
+			}
+
+		} else {
+
+			outQueue.add(frame);
+
+			if (writeScheduled.compareAndSet(false, true))
+				selector.requestWrite(this);
 
 		}
 
@@ -227,12 +515,40 @@ public class ProtocolSocket {
 	 */
 	public void close() {
 
+		if (!closed.compareAndSet(false, true))
+			return;
+
 		outQueue.clear();
 
 		running = false;
 
+		synchronized (outQueue) {
+			outQueue.notifyAll();
+		}
+
 		onTerminate();
 
+		if (connection != null) {
+			synchronized (connection.channels) {
+				if (connection.channels.get(channelId) == this)
+					connection.channels.remove(channelId);
+			}
+			return;
+		}
+
+		// the channels can not be used without the connection
+		for (ProtocolSocket c : channels.values().toArray(new ProtocolSocket[0]))
+			c.close();
+
+		if (key != null)
+			key.cancel();
+
+		try {
+			if (channel != null)
+				channel.close();
+		} catch (IOException e) {
+		}
+
 		try {
 			in.close();
 		} catch (IOException e) {
@@ -248,7 +564,7 @@ public class ProtocolSocket {
 
 	/**
 	 * Handle message.
-	 * 
+	 *
 	 * @param message
 	 *            the message string
 	 */
@@ -262,6 +578,19 @@ public class ProtocolSocket {
 
 	}
 
+	/**
+	 * Handle a decoded message. The default implementation passes the message
+	 * in the text format to {@link #handleMessage(String)}.
+	 *
+	 * @param message
+	 *            the message
+	 */
+	protected void handleMessage(NewMessage message) {
+
+		handleMessage(message.encodeMessage());
+
+	}
+
 	/**
 	 * On terminate.
 	 */
@@ -277,4 +606,500 @@ public class ProtocolSocket {
 		return socket.getPort();
 	}
 
+	/**
+	 * Encodes a message into a frame.
+	 *
+	 * @param msg
+	 *            the message
+	 * @return the frame, ready for reading
+	 * @throws IOException
+	 *             if the message can not be encoded
+	 */
+	protected static ByteBuffer encodeFrame(String msg) throws IOException {
+
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream(msg.length() + 2);
+
+		try {
+			new DataOutputStream(buffer).writeUTF(msg);
+		} catch (UTFDataFormatException e) {
+			// too long for a regular frame
+			return encodeFrame(FRAME_TEXT, msg.getBytes(UTF8));
+		}
+
+		return ByteBuffer.wrap(buffer.toByteArray());
+
+	}
+
+	/**
+	 * Encodes an extended frame.
+	 *
+	 * @param kind
+	 *            the kind of the frame
+	 * @param body
+	 *            the body of the frame
+	 * @return the frame, ready for reading
+	 */
+	protected static ByteBuffer encodeFrame(int kind, byte[] body) {
+
+		ByteBuffer frame = ByteBuffer.allocate(body.length + 8);
+
+		frame.putShort((short) 0);
+		frame.put((byte) kind);
+
+		int length = body.length;
+		while ((length & ~0x7F) != 0) {
+			frame.put((byte) ((length & 0x7F) | 0x80));
+			length >>>= 7;
+		}
+		frame.put((byte) length);
+
+		frame.put(body);
+		frame.flip();
+
+		return frame;
+
+	}
+
+	/**
+	 * Encodes a channel frame.
+	 *
+	 * @param id
+	 *            the id of the channel
+	 * @param message
+	 *            the message in the binary format
+	 * @return the frame, ready for reading
+	 */
+	protected static ByteBuffer encodeChannelFrame(int id, byte[] message) {
+
+		NewMessage.BinaryWriter writer = new NewMessage.BinaryWriter(5);
+		writer.writeVarint(id);
+
+		byte[] prefix = writer.toByteArray();
+		byte[] body = Arrays.copyOf(prefix, prefix.length + message.length);
+		System.arraycopy(message, 0, body, prefix.length, message.length);
+
+		return encodeFrame(FRAME_CHANNEL, body);
+
+	}
+
+	/**
+	 * Returns the length of the header of an extended frame or -1 if the
+	 * header is not complete yet.
+	 */
+	private static int extendedHeader(ByteBuffer buffer, int offset, int available) {
+
+		for (int i = 3; i < 8; i++) {
+			if (i >= available)
+				return -1;
+			if ((buffer.get(offset + i) & 0x80) == 0)
+				return i + 1;
+		}
+
+		throw new IllegalArgumentException("Malformed frame header");
+
+	}
+
+	/**
+	 * Returns the length of the body of an extended frame with a complete
+	 * header.
+	 */
+	private static int extendedLength(ByteBuffer buffer, int offset) {
+
+		int length = 0;
+
+		for (int i = 0; i < 5; i++) {
+			int b = buffer.get(offset + 3 + i);
+			length |= (b & 0x7F) << (7 * i);
+			if ((b & 0x80) == 0)
+				break;
+		}
+
+		if (length < 0)
+			throw new IllegalArgumentException("Malformed frame header");
+
+		return length;
+
+	}
+
+	/**
+	 * Parses all complete frames in the input buffer and handles the messages.
+	 * The buffer is left in write mode with the incomplete frame at its start.
+	 *
+	 * @throws IOException
+	 *             if a frame can not be decoded
+	 */
+	private void processInput() throws IOException {
+
+		input.flip();
+
+		while (running && input.remaining() >= 2) {
+
+			int length = ((input.get(input.position()) & 0xFF) << 8)
+					| (input.get(input.position() + 1) & 0xFF);
+
+			if (length == 0) {
+
+				int header = extendedHeader(input, input.position(), input.remaining());
+
+				if (header < 0)
+					break;
+
+				length = extendedLength(input, input.position());
+
+				if (length > maxFrameSize)
+					throw new IOException("Frame too large: " + length + " bytes");
+
+				int kind = input.get(input.position() + 2);
+
+				if (header + length > input.capacity()) {
+
+					// continue reading the frame into a buffer of its own
+					input.position(input.position() + header);
+
+					largeFrame = ByteBuffer.allocate(length);
+					largeKind = kind;
+
+					largeFrame.put(input);
+
+					break;
+				}
+
+				if (input.remaining() < header + length)
+					break;
+
+				int start = input.position() + header;
+
+				input.position(start + length);
+
+				handleFrame(kind, input.array(), start, length);
+
+				continue;
+			}
+
+			if (input.remaining() < length + 2)
+				break;
+
+			String message = DataInputStream.readUTF(new DataInputStream(
+					new ByteArrayInputStream(input.array(), input.position(), length + 2)));
+
+			input.position(input.position() + length + 2);
+
+			if (debug) {
+				System.err.println("*** MESSAGE INCOMING FROM " + getRemotePort() + " <<< "
+						+ message + " <<<");
+			}
+
+			deliver(-1, new NewMessage(message));
+		}
+
+		input.compact();
+
+	}
+
+	/**
+	 * Handles the body of an extended frame.
+	 *
+	 * @throws IOException
+	 *             if the frame can not be decoded
+	 */
+	private void handleFrame(int kind, byte[] buffer, int offset, int length)
+			throws IOException {
+
+		NewMessage message;
+
+		switch (kind) {
+		case FRAME_BINARY:
+			message = new NewMessage(buffer, offset, length);
+			break;
+		case FRAME_TEXT:
+			message = new NewMessage(new String(buffer, offset, length, UTF8));
+			break;
+		case FRAME_CHANNEL: {
+			NewMessage.BinaryReader reader = new NewMessage.BinaryReader(buffer, offset, length);
+			int id = reader.readVarint();
+			int header = reader.getPosition() - offset;
+
+			handleChannelFrame(id, new NewMessage(buffer, offset + header, length - header));
+			return;
+		}
+		default:
+			throw new IOException("Unknown frame kind " + kind);
+		}
+
+		if (debug) {
+			System.err.println("*** MESSAGE INCOMING FROM " + getRemotePort() + " <<< "
+					+ message.encodeMessage() + " <<<");
+		}
+
+		deliver(-1, message);
+
+	}
+
+	/**
+	 * Passes a message to the channel it was sent to.
+	 */
+	private void handleChannelFrame(int id, NewMessage message) {
+
+		if (debug) {
+			System.err.println("*** MESSAGE INCOMING FROM " + getRemotePort() + "#" + id + " <<< "
+					+ message.encodeMessage() + " <<<");
+		}
+
+		deliver(id, message);
+
+	}
+
+	/**
+	 * Passes a decoded message to the connection or to one of its channels.
+	 * Sockets with their own threads handle the message in the input thread.
+	 * Sockets that are driven by a selector hand it over to a handler thread
+	 * of the selector, so a handler that blocks does not stop the input and
+	 * output of other sockets. The messages of a connection and its channels
+	 * are handled one at a time in the order in which they arrived.
+	 *
+	 * @param channel
+	 *            the id of the channel or -1 for the connection itself
+	 */
+	private void deliver(int channel, NewMessage message) {
+
+		if (selector == null) {
+			handle(channel, message);
+			return;
+		}
+
+		received.add(new Received(channel, message));
+
+		if (handleScheduled.compareAndSet(false, true))
+			selector.execute(new Runnable() {
+
+				@Override
+				public void run() {
+					handleReceived();
+				}
+			});
+
+	}
+
+	private void handleReceived() {
+
+		while (true) {
+
+			Received next = received.poll();
+
+			if (next == null) {
+
+				handleScheduled.set(false);
+
+				// a message may have been queued after the check above
+				if (received.isEmpty() || !handleScheduled.compareAndSet(false, true))
+					return;
+
+				continue;
+			}
+
+			handle(next.channel, next.message);
+
+		}
+
+	}
+
+	/**
+	 * Handles a message. Messages for unknown channels are dropped, a socket
+	 * that fails to handle a message is closed. A failing channel does not
+	 * close its connection.
+	 */
+	private void handle(int channel, NewMessage message) {
+
+		ProtocolSocket target = channel < 0 ? this : channels.get(channel);
+
+		if (target == null || target.isClosed())
+			return;
+
+		try {
+			target.handleMessage(message);
+		} catch (RuntimeException e) {
+			if (debug)
+				e.printStackTrace();
+			target.close();
+		}
+
+	}
+
+	/**
+	 * Reads the available input from the socket and handles all complete
+	 * frames.
+	 *
+	 * @return the number of bytes read or -1 at the end of the stream
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private int readInput() throws IOException {
+
+		ByteBuffer target = largeFrame;
+
+		if (target == null) {
+			ensureInputCapacity();
+			target = input;
+		}
+
+		int read;
+
+		if (channel != null) {
+			read = channel.read(target);
+		} else {
+			read = in.read(target.array(), target.position(), target.remaining());
+			if (read > 0)
+				target.position(target.position() + read);
+		}
+
+		if (read <= 0)
+			return read;
+
+		if (largeFrame == null) {
+			processInput();
+		} else if (!largeFrame.hasRemaining()) {
+			ByteBuffer frame = largeFrame;
+			largeFrame = null;
+			handleFrame(largeKind, frame.array(), 0, frame.capacity());
+		}
+
+		return read;
+
+	}
+
+	/**
+	 * Sets the maximum length of an incoming frame. The connection is closed
+	 * if a longer frame arrives.
+	 *
+	 * @param maxFrameSize
+	 *            the maximum frame length in bytes
+	 */
+	public void setMaxFrameSize(int maxFrameSize) {
+		this.maxFrameSize = maxFrameSize;
+	}
+
+	/**
+	 * Makes sure that there is space in the input buffer for at least one
+	 * complete frame.
+	 */
+	private void ensureInputCapacity() {
+
+		int required = input.position() + 1;
+
+		if (input.position() >= 2) {
+			int length = ((input.get(0) & 0xFF) << 8) | (input.get(1) & 0xFF);
+
+			// extended frames that do not fit are read into their own buffer
+			if (length != 0)
+				required = Math.max(required, length + 2);
+		}
+
+		if (required <= input.capacity())
+			return;
+
+		ByteBuffer larger = ByteBuffer.allocate(Math.max(required, input.capacity() * 2));
+		input.flip();
+		larger.put(input);
+		input = larger;
+
+	}
+
+	/**
+	 * Called by the selector when the socket is registered.
+	 *
+	 * @param key
+	 *            the selection key of the channel
+	 */
+	void registered(SelectionKey key) {
+		this.key = key;
+		if (!running)
+			key.cancel();
+		else if (!outQueue.isEmpty()) // frames sent before the socket was started
+			key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+	}
+
+	SocketChannel getChannel() {
+		return channel;
+	}
+
+	ProtocolSelector.Worker getWorker() {
+		return worker;
+	}
+
+	void setWorker(ProtocolSelector.Worker worker) {
+		this.worker = worker;
+	}
+
+	/**
+	 * Called by the selector when the channel is readable.
+	 */
+	void readChannel() {
+
+		try {
+
+			while (running) {
+
+				int read = readInput();
+
+				if (read < 0) {
+					close();
+					return;
+				}
+
+				if (read == 0)
+					break;
+
+			}
+
+		} catch (Exception e) {
+			if (debug)
+				e.printStackTrace();
+			close();
+		}
+
+	}
+
+	/**
+	 * Called by the selector when the channel is writable.
+	 *
+	 * @return true if all queued frames were written
+	 */
+	boolean writeChannel() {
+
+		try {
+
+			while (running) {
+
+				ByteBuffer frame = outQueue.peek();
+
+				if (frame == null) {
+
+					writeScheduled.set(false);
+
+					// a frame may have been queued after the check above
+					if (outQueue.isEmpty() || !writeScheduled.compareAndSet(false, true))
+						return true;
+
+					continue;
+				}
+
+				channel.write(frame);
+
+				if (frame.hasRemaining())
+					return false;
+
+				outQueue.poll();
+
+			}
+
+		} catch (Exception e) {
+			if (debug)
+				e.printStackTrace();
+			close();
+		}
+
+		return true;
+
+	}
+
 }
@@ -0,0 +1,329 @@
+/*
+ *  AgentField - a simple capture-the-flag simulation for distributed intelligence
+ *  Copyright (C) 2011 Luka Cehovin <http://vicos.fri.uni-lj.si/lukacu>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program. If not, see <http://www.gnu.org/licenses/>. 
+ */
+package org.grid.replay;
+
+import java.awt.Color;
+import java.io.UnsupportedEncodingException;
+import java.util.Arrays;
+
+import org.grid.arena.Arena;
+import org.grid.protocol.NewMessage.BinaryReader;
+
+/**
+ * The state of the field rebuilt from the records of a replay.
+ */
+public class ReplayArena implements Arena {
+
+	private int width, height;
+
+	private byte[] tiles;
+
+	// per cell: body tile, team index + 1, agent id and offsets
+	private int[] bodies;
+
+	private byte[] teams;
+
+	private int[] ids;
+
+	private byte[] offsetsX, offsetsY;
+
+	private String[] teamNames;
+
+	private Color[] teamColors;
+
+	private int[] scores;
+
+	private int step = -1;
+
+	/**
+	 * Reads the header of a replay.
+	 *
+	 * @param reader the header
+	 * @return the empty arena
+	 */
+	public static ReplayArena readHeader(BinaryReader reader) {
+
+		int version = reader.readVarint();
+
+		if (version != ReplayFormat.VERSION)
+			throw new IllegalArgumentException("Unsupported replay version " + version);
+
+		ReplayArena arena = new ReplayArena(reader.readVarint(), reader.readVarint());
+
+		arena.tiles = reader.readBytes();
+
+		int count = reader.readVarint();
+
+		arena.teamNames = new String[count];
+		arena.teamColors = new Color[count];
+		arena.scores = new int[count];
+
+		for (int i = 0; i < count; i++) {
+			try {
+				arena.teamNames[i] = new String(reader.readBytes(), "UTF-8");
+			} catch (UnsupportedEncodingException e) {
+				throw new IllegalStateException(e);
+			}
+			arena.teamColors[i] = new Color(reader.readVarint());
+		}
+
+		return arena;
+
+	}
+
+	private ReplayArena(int width, int height) {
+
+		this.width = width;
+		this.height = height;
+
+		bodies = new int[width * height];
+		teams = new byte[width * height];
+		ids = new int[width * height];
+		offsetsX = new byte[width * height];
+		offsetsY = new byte[width * height];
+
+	}
+
+	/**
+	 * Instantiates a copy of the given arena.
+	 *
+	 * @param arena the arena
+	 */
+	public ReplayArena(ReplayArena arena) {
+
+		width = arena.width;
+		height = arena.height;
+		tiles = arena.tiles;
+		teamNames = arena.teamNames;
+		teamColors = arena.teamColors;
+		scores = arena.scores.clone();
+		step = arena.step;
+		bodies = arena.bodies.clone();
+		teams = arena.teams.clone();
+		ids = arena.ids.clone();
+		offsetsX = arena.offsetsX.clone();
+		offsetsY = arena.offsetsY.clone();
+
+	}
+
+	/**
+	 * Applies a frame record.
+	 *
+	 * @param reader the body of the record
+	 * @return the step of the frame
+	 */
+	public int applyFrame(BinaryReader reader) {
+
+		step = reader.readVarint();
+
+		if (reader.readByte() != 0)
+			clear();
+
+		int count = reader.readVarint();
+
+		for (int i = 0; i < count; i++) {
+
+			int cell = reader.readVarint();
+			int tile = reader.readVarint();
+
+			if (cell < 0 || cell >= bodies.length)
+				throw new IllegalArgumentException("Invalid cell " + cell);
+
+			bodies[cell] = tile;
+			teams[cell] = 0;
+			ids[cell] = 0;
+			offsetsX[cell] = 0;
+			offsetsY[cell] = 0;
+
+			if (!hasTeam(tile))
+				continue;
+
+			teams[cell] = (byte) reader.readByte();
+
+			if (tile == Arena.TILE_AGENT || tile == Arena.TILE_AGENT_FLAG)
+				ids[cell] = reader.readVarint();
+
+			offsetsX[cell] = (byte) reader.readByte();
+			offsetsY[cell] = (byte) reader.readByte();
+		}
+
+		return step;
+
+	}
+
+	/**
+	 * Checks if the bodies with the given tile are stored with a team, an id
+	 * and offsets.
+	 */
+	public static boolean hasTeam(int tile) {
+		return tile != 0 && (tile < Arena.TILE_WALL_0 || tile > Arena.TILE_WALL_9);
+	}
+
+	/**
+	 * Applies a score record.
+	 *
+	 * @param reader the body of the record
+	 */
+	public void applyScore(BinaryReader reader) {
+
+		reader.readVarint();
+
+		int team = reader.readVarint();
+		int score = reader.readVarint();
+
+		if (team >= 0 && team < scores.length)
+			scores[team] = score;
+
+	}
+
+	void setScores(int[] scores) {
+		System.arraycopy(scores, 0, this.scores, 0, Math.min(scores.length, this.scores.length));
+	}
+
+	private void clear() {
+
+		Arrays.fill(bodies, 0);
+		Arrays.fill(teams, (byte) 0);
+		Arrays.fill(ids, 0);
+		Arrays.fill(offsetsX, (byte) 0);
+		Arrays.fill(offsetsY, (byte) 0);
+
+	}
+
+	/**
+	 * Resets the arena to the state before the first frame.
+	 */
+	public void reset() {
+
+		clear();
+		Arrays.fill(scores, 0);
+		step = -1;
+
+	}
+
+	/**
+	 * Returns the step of the last applied frame.
+	 */
+	public int getStep() {
+		return step;
+	}
+
+	public int getTeamCount() {
+		return teamNames.length;
+	}
+
+	public String getTeamName(int team) {
+		return teamNames[team];
+	}
+
+	public Color getTeamColor(int team) {
+		return teamColors[team];
+	}
+
+	public int getScore(int team) {
+		return scores[team];
+	}
+
+	/**
+	 * Returns the id of the agent in the given cell or 0 if there is no agent.
+	 */
+	public int getAgentId(int x, int y) {
+
+		if (!contains(x, y))
+			return 0;
+
+		return ids[y * width + x];
+
+	}
+
+	/**
+	 * Returns the index of the team of the body in the given cell or -1.
+	 */
+	public int getBodyTeam(int x, int y) {
+
+		if (!contains(x, y))
+			return -1;
+
+		return (teams[y * width + x] & 0xFF) - 1;
+
+	}
+
+	public boolean contains(int x, int y) {
+		return x >= 0 && x < width && y >= 0 && y < height;
+	}
+
+	@Override
+	public int getWidth() {
+		return width;
+	}
+
+	@Override
+	public int getHeight() {
+		return height;
+	}
+
+	@Override
+	public int getBaseTile(int x, int y) {
+
+		if (!contains(x, y))
+			return 0;
+
+		return tiles[y * width + x];
+
+	}
+
+	@Override
+	public int getBodyTile(int x, int y) {
+
+		if (!contains(x, y))
+			return 0;
+
+		return bodies[y * width + x];
+
+	}
+
+	@Override
+	public float getBodyOffsetX(int x, int y) {
+
+		if (!contains(x, y))
+			return 0;
+
+		return offsetsX[y * width + x] / ReplayFormat.OFFSET_SCALE;
+
+	}
+
+	@Override
+	public float getBodyOffsetY(int x, int y) {
+
+		if (!contains(x, y))
+			return 0;
+
+		return offsetsY[y * width + x] / ReplayFormat.OFFSET_SCALE;
+
+	}
+
+	@Override
+	public Color getBodyColor(int x, int y) {
+
+		int team = getBodyTeam(x, y);
+
+		return team >= 0 && team < teamColors.length ? teamColors[team] : null;
+
+	}
+
+}
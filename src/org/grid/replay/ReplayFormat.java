@@ -0,0 +1,59 @@
+/*
+ *  AgentField - a simple capture-the-flag simulation for distributed intelligence
+ *  Copyright (C) 2011 Luka Cehovin <http://vicos.fri.uni-lj.si/lukacu>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program. If not, see <http://www.gnu.org/licenses/>. 
+ */
+package org.grid.replay;
+
+/**
+ * Constants of the replay format. A replay starts with the magic number, the
+ * version and the header (see {@link ReplayArena#readHeader(org.grid.protocol.NewMessage.BinaryReader)}),
+ * followed by records. Each record is a record type byte, the length of the
+ * body as a varint and the body.
+ * <p>
+ * A frame record holds the step, a keyframe flag and the cells that changed
+ * since the previous frame; a keyframe holds all cells that are not empty.
+ * Message and score records hold the step followed by the team and the
+ * details of the event.
+ * <p>
+ * The spectator stream of the server uses the same format, it starts with a
+ * keyframe instead of the first frame of the game.
+ */
+public final class ReplayFormat {
+
+	public static final int MAGIC = 0x47524450;
+
+	public static final int VERSION = 1;
+
+	public static final int RECORD_FRAME = 1;
+
+	public static final int RECORD_MESSAGE = 2;
+
+	public static final int RECORD_SCORE = 3;
+
+	/**
+	 * The number of steps between two keyframes.
+	 */
+	public static final int KEYFRAME_INTERVAL = 100;
+
+	/**
+	 * The scale of the body offsets, offsets are stored as signed bytes.
+	 */
+	public static final float OFFSET_SCALE = 100;
+
+	private ReplayFormat() {
+	}
+
+}
@@ -0,0 +1,518 @@
+/*
+ *  AgentField - a simple capture-the-flag simulation for distributed intelligence
+ *  Copyright (C) 2011 Luka Cehovin <http://vicos.fri.uni-lj.si/lukacu>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program. If not, see <http://www.gnu.org/licenses/>. 
+ */
+package org.grid.replay;
+
+import java.awt.BorderLayout;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Vector;
+
+import javax.swing.JFrame;
+import javax.swing.JLabel;
+import javax.swing.JPanel;
+import javax.swing.JScrollPane;
+import javax.swing.JSlider;
+import javax.swing.SwingUtilities;
+import javax.swing.Timer;
+import javax.swing.event.ChangeEvent;
+import javax.swing.event.ChangeListener;
+
+import org.grid.arena.SwingView;
+import org.grid.protocol.NewMessage.BinaryReader;
+
+/**
+ * Plays a replay written by the server. The player can be driven step by step
+ * by any consumer and can seek to any step using the keyframes of the replay.
+ * The main method shows the replay in a window or prints a summary of it.
+ */
+public class ReplayPlayer {
+
+	public static interface ReplayListener {
+
+		public void frame(ReplayArena arena);
+
+		public void message(int step, int team, int from, int to, int length);
+
+		public void score(int step, int team, int score);
+
+	}
+
+	private ByteBuffer data;
+
+	private ReplayArena arena;
+
+	private int start;
+
+	// the keyframes: step, position in the file and scores at that point
+	private int[] keyframeSteps = new int[16];
+
+	private int[] keyframePositions = new int[16];
+
+	private Vector<int[]> keyframeScores = new Vector<int[]>();
+
+	private int keyframeCount = 0;
+
+	private int firstStep = -1, lastStep = -1;
+
+	private Vector<ReplayListener> listeners = new Vector<ReplayListener>();
+
+	/**
+	 * Opens a replay file and builds the index of its keyframes.
+	 *
+	 * @param file the replay file
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public ReplayPlayer(File file) throws IOException {
+
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+
+		try {
+			FileChannel channel = raf.getChannel();
+			data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		} finally {
+			raf.close();
+		}
+
+		if (data.remaining() < 4 || data.getInt() != ReplayFormat.MAGIC)
+			throw new IOException("Not a replay file");
+
+		int length = readVarint(data);
+		byte[] header = new byte[length];
+		data.get(header);
+
+		arena = ReplayArena.readHeader(new BinaryReader(header, 0, length));
+
+		start = data.position();
+
+		index();
+
+		data.position(start);
+
+	}
+
+	private static int readVarint(ByteBuffer buffer) {
+
+		int value = 0;
+
+		for (int shift = 0; shift < 35; shift += 7) {
+			int b = buffer.get() & 0xFF;
+			value |= (b & 0x7F) << shift;
+			if ((b & 0x80) == 0)
+				return value;
+		}
+
+		throw new IllegalArgumentException("Malformed varint");
+
+	}
+
+	/**
+	 * Scans the records. A record that was not written completely (e.g. the
+	 * server was killed) ends the replay.
+	 */
+	private void index() {
+
+		int[] scores = new int[arena.getTeamCount()];
+
+		while (data.hasRemaining()) {
+
+			int position = data.position();
+			byte[] body = readRecord();
+
+			if (body == null) {
+				data = data.duplicate();
+				data.limit(position);
+				break;
+			}
+
+			int type = body[body.length - 1];
+			BinaryReader reader = new BinaryReader(body, 0, body.length - 1);
+
+			if (type == ReplayFormat.RECORD_FRAME) {
+				int step = reader.readVarint();
+
+				if (firstStep < 0)
+					firstStep = step;
+
+				lastStep = step;
+
+				if (reader.readByte() != 0) {
+					if (keyframeCount == keyframeSteps.length) {
+						keyframeSteps = Arrays.copyOf(keyframeSteps, keyframeCount * 2);
+						keyframePositions = Arrays.copyOf(keyframePositions, keyframeCount * 2);
+					}
+					keyframeSteps[keyframeCount] = step;
+					keyframePositions[keyframeCount] = position;
+					keyframeScores.add(scores.clone());
+					keyframeCount++;
+				}
+			}
+
+			if (type == ReplayFormat.RECORD_SCORE) {
+				reader.readVarint();
+				int team = reader.readVarint();
+				int score = reader.readVarint();
+				if (team >= 0 && team < scores.length)
+					scores[team] = score;
+			}
+		}
+
+	}
+
+	/**
+	 * Reads the next record. The type of the record is stored in the last byte
+	 * of the returned array.
+	 *
+	 * @return the body and the type or null if the record is not complete
+	 */
+	private byte[] readRecord() {
+
+		try {
+			int type = data.get() & 0xFF;
+			int length = readVarint(data);
+
+			if (length < 0 || length > data.remaining())
+				return null;
+
+			byte[] body = new byte[length + 1];
+			data.get(body, 0, length);
+			body[length] = (byte) type;
+
+			return body;
+		} catch (RuntimeException e) {
+			return null;
+		}
+
+	}
+
+	public ReplayArena getArena() {
+		return arena;
+	}
+
+	public int getFirstStep() {
+		return firstStep;
+	}
+
+	public int getLastStep() {
+		return lastStep;
+	}
+
+	public void addListener(ReplayListener listener) {
+		listeners.add(listener);
+	}
+
+	public void removeListener(ReplayListener listener) {
+		listeners.remove(listener);
+	}
+
+	/**
+	 * Plays the records up to and including the next frame.
+	 *
+	 * @return false if the end of the replay was reached
+	 */
+	public synchronized boolean next() {
+
+		while (data.hasRemaining()) {
+
+			byte[] body = readRecord();
+
+			if (body == null)
+				return false;
+
+			if (apply(body, true))
+				return true;
+		}
+
+		return false;
+
+	}
+
+	private boolean apply(byte[] body, boolean notify) {
+
+		return apply(arena, listeners, body, notify);
+
+	}
+
+	/**
+	 * Applies a record to an arena.
+	 *
+	 * @param arena the arena
+	 * @param listeners the listeners that are notified
+	 * @param body the body of the record followed by its type
+	 * @param notify should the listeners be notified
+	 * @return true if the record was a frame
+	 */
+	static boolean apply(ReplayArena arena, List<ReplayListener> listeners, byte[] body, boolean notify) {
+
+		int type = body[body.length - 1];
+		BinaryReader reader = new BinaryReader(body, 0, body.length - 1);
+
+		switch (type) {
+		case ReplayFormat.RECORD_FRAME:
+			arena.applyFrame(reader);
+			if (notify)
+				for (ReplayListener l : listeners)
+					l.frame(arena);
+			return true;
+		case ReplayFormat.RECORD_MESSAGE:
+			if (notify) {
+				int step = reader.readVarint(), team = reader.readVarint();
+				int from = reader.readVarint(), to = reader.readVarint();
+				int length = reader.readVarint();
+				for (ReplayListener l : listeners)
+					l.message(step, team, from, to, length);
+			}
+			return false;
+		case ReplayFormat.RECORD_SCORE:
+			arena.applyScore(new BinaryReader(body, 0, body.length - 1));
+			if (notify) {
+				int step = reader.readVarint(), team = reader.readVarint();
+				int score = reader.readVarint();
+				for (ReplayListener l : listeners)
+					l.score(step, team, score);
+			}
+			return false;
+		default:
+			// unknown records are skipped
+			return false;
+		}
+
+	}
+
+	/**
+	 * Moves the replay to the given step. The state is rebuilt from the
+	 * closest keyframe before the step, only the final frame is reported to
+	 * the listeners.
+	 *
+	 * @param step the step
+	 */
+	public synchronized void seek(int step) {
+
+		int k = 0;
+
+		while (k + 1 < keyframeCount && keyframeSteps[k + 1] <= step)
+			k++;
+
+		arena.reset();
+
+		if (keyframeCount == 0) {
+			data.position(start);
+			return;
+		}
+
+		arena.setScores(keyframeScores.get(k));
+		data.position(keyframePositions[k]);
+
+		while (data.hasRemaining()) {
+
+			int position = data.position();
+			byte[] body = readRecord();
+
+			if (body == null)
+				break;
+
+			if (body[body.length - 1] == ReplayFormat.RECORD_FRAME
+					&& arena.getStep() >= 0
+					&& new BinaryReader(body, 0, body.length - 1).readVarint() > step) {
+				data.position(position);
+				break;
+			}
+
+			// the records that follow the frame belong to the next step
+			if (apply(body, false) && arena.getStep() >= step)
+				break;
+		}
+
+		for (ReplayListener l : listeners)
+			l.frame(arena);
+
+	}
+
+	private static void usage() {
+
+		System.out.println("Usage: ReplayPlayer [--headless] [--speed N] [--seek STEP] REPLAY");
+		System.out.println("  --speed N    steps per second, 0 plays as fast as possible (default 10)");
+		System.exit(1);
+
+	}
+
+	public static void main(String[] args) throws IOException {
+
+		boolean headless = false;
+		int speed = 10, seek = -1;
+		String file = null;
+
+		try {
+			for (int i = 0; i < args.length; i++) {
+				if (args[i].equals("--headless"))
+					headless = true;
+				else if (args[i].equals("--speed"))
+					speed = Integer.parseInt(args[++i]);
+				else if (args[i].equals("--seek"))
+					seek = Integer.parseInt(args[++i]);
+				else
+					file = args[i];
+			}
+		} catch (RuntimeException e) {
+			usage();
+		}
+
+		if (file == null)
+			usage();
+
+		final ReplayPlayer player = new ReplayPlayer(new File(file));
+
+		System.out.printf("Replay of %d steps (%d to %d)\n", player.getLastStep() - player.getFirstStep() + 1,
+				player.getFirstStep(), player.getLastStep());
+
+		if (seek >= 0)
+			player.seek(seek);
+
+		if (headless)
+			playHeadless(player, speed);
+		else
+			playWindow(player, speed);
+
+	}
+
+	private static void playHeadless(ReplayPlayer player, int speed) {
+
+		final int[] messages = new int[player.getArena().getTeamCount()];
+
+		player.addListener(new ReplayListener() {
+
+			@Override
+			public void score(int step, int team, int score) {
+			}
+
+			@Override
+			public void message(int step, int team, int from, int to, int length) {
+				if (team >= 0 && team < messages.length)
+					messages[team]++;
+			}
+
+			@Override
+			public void frame(ReplayArena arena) {
+			}
+		});
+
+		while (player.next()) {
+			if (speed > 0) {
+				try {
+					Thread.sleep(1000 / speed);
+				} catch (InterruptedException e) {
+				}
+			}
+		}
+
+		ReplayArena arena = player.getArena();
+
+		for (int i = 0; i < arena.getTeamCount(); i++)
+			System.out.printf("%s scored %d points and sent %d messages.\n", arena.getTeamName(i),
+					arena.getScore(i), messages[i]);
+
+	}
+
+	private static void playWindow(final ReplayPlayer player, final int speed) {
+
+		SwingUtilities.invokeLater(new Runnable() {
+
+			@Override
+			public void run() {
+
+				final ReplayArena arena = player.getArena();
+				final SwingView view = new SwingView(12);
+				view.setStaticBackground(true);
+				final JLabel status = new JLabel();
+				final JSlider slider = new JSlider(player.getFirstStep(), Math.max(player.getFirstStep(), player.getLastStep()));
+
+				JFrame frame = new JFrame("Replay");
+				JPanel controls = new JPanel(new BorderLayout());
+
+				controls.add(slider, BorderLayout.CENTER);
+				controls.add(status, BorderLayout.EAST);
+
+				frame.getContentPane().add(new JScrollPane(view), BorderLayout.CENTER);
+				frame.getContentPane().add(controls, BorderLayout.SOUTH);
+
+				final ReplayListener listener = new ReplayListener() {
+
+					@Override
+					public void score(int step, int team, int score) {
+					}
+
+					@Override
+					public void message(int step, int team, int from, int to, int length) {
+					}
+
+					@Override
+					public void frame(ReplayArena a) {
+						StringBuilder sb = new StringBuilder("Step " + a.getStep());
+						for (int i = 0; i < a.getTeamCount(); i++)
+							sb.append("  " + a.getTeamName(i) + ": " + a.getScore(i));
+						status.setText(sb.toString());
+						view.update(a);
+					}
+				};
+
+				player.addListener(listener);
+
+				final boolean[] playing = new boolean[] {false};
+
+				slider.addChangeListener(new ChangeListener() {
+
+					@Override
+					public void stateChanged(ChangeEvent e) {
+						if (!playing[0])
+							player.seek(slider.getValue());
+					}
+				});
+
+				Timer timer = new Timer(speed > 0 ? 1000 / speed : 1, new ActionListener() {
+
+					@Override
+					public void actionPerformed(ActionEvent e) {
+						if (slider.getValueIsAdjusting())
+							return;
+						playing[0] = true;
+						if (player.next())
+							slider.setValue(arena.getStep());
+						playing[0] = false;
+					}
+				});
+
+				view.update(arena);
+				listener.frame(arena);
+
+				frame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
+				frame.setSize(800, 600);
+				frame.setVisible(true);
+
+				timer.start();
+			}
+		});
+
+	}
+
+}
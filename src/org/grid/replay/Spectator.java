@@ -0,0 +1,338 @@
+/*
+ *  AgentField - a simple capture-the-flag simulation for distributed intelligence
+ *  Copyright (C) 2011 Luka Cehovin <http://vicos.fri.uni-lj.si/lukacu>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program. If not, see <http://www.gnu.org/licenses/>. 
+ */
+package org.grid.replay;
+
+import java.awt.BorderLayout;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.util.Vector;
+
+import javax.swing.JFrame;
+import javax.swing.JLabel;
+import javax.swing.JScrollPane;
+import javax.swing.SwingUtilities;
+import javax.swing.Timer;
+
+import org.grid.arena.SwingView;
+import org.grid.protocol.NewMessage.BinaryReader;
+import org.grid.replay.ReplayPlayer.ReplayListener;
+
+/**
+ * Watches a running game over the spectator stream of the server (enabled
+ * with the <tt>server.spectators</tt> property). The stream has the format of
+ * a replay, so the state is kept in a {@link ReplayArena} and the listeners of
+ * the replay player can be used. The main method shows the game in a window or
+ * prints a summary of it when the game ends.
+ */
+public class Spectator {
+
+	public static final int DEFAULT_PORT = 5001;
+
+	private Socket socket;
+
+	private DataInputStream in;
+
+	private ReplayArena arena;
+
+	private Vector<ReplayListener> listeners = new Vector<ReplayListener>();
+
+	/**
+	 * Connects to the server and reads the header of the stream.
+	 *
+	 * @param host the host of the server
+	 * @param port the spectator port of the server
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public Spectator(String host, int port) throws IOException {
+
+		socket = new Socket(host, port);
+
+		in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 65536));
+
+		if (in.readInt() != ReplayFormat.MAGIC) {
+			socket.close();
+			throw new IOException("Not a spectator stream");
+		}
+
+		byte[] header = new byte[readVarint(in)];
+		in.readFully(header);
+
+		arena = ReplayArena.readHeader(new BinaryReader(header, 0, header.length));
+
+	}
+
+	private static int readVarint(InputStream in) throws IOException {
+
+		int value = 0;
+
+		for (int shift = 0; shift < 35; shift += 7) {
+			int b = in.read();
+			if (b < 0)
+				throw new EOFException();
+			value |= (b & 0x7F) << shift;
+			if ((b & 0x80) == 0)
+				return value;
+		}
+
+		throw new IOException("Malformed varint");
+
+	}
+
+	public ReplayArena getArena() {
+		return arena;
+	}
+
+	public void addListener(ReplayListener listener) {
+		listeners.add(listener);
+	}
+
+	public void removeListener(ReplayListener listener) {
+		listeners.remove(listener);
+	}
+
+	/**
+	 * Reads and applies the records up to and including the next frame. Blocks
+	 * until the server sends the frame.
+	 *
+	 * @return false if the server closed the stream
+	 */
+	public boolean next() {
+
+		try {
+			while (true) {
+
+				int type = in.read();
+
+				if (type < 0)
+					return false;
+
+				byte[] body = new byte[readVarint(in) + 1];
+				in.readFully(body, 0, body.length - 1);
+				body[body.length - 1] = (byte) type;
+
+				if (ReplayPlayer.apply(arena, listeners, body, true))
+					return true;
+			}
+		} catch (IOException e) {
+			return false;
+		}
+
+	}
+
+	/**
+	 * Disconnects from the server.
+	 */
+	public void close() {
+
+		try {
+			socket.close();
+		} catch (IOException e) {
+		}
+
+	}
+
+	private static void usage() {
+
+		System.out.println("Usage: Spectator [--headless] [--fps N] HOST[:PORT]");
+		System.out.println("  --fps N      maximum number of repaints per second (default 25)");
+		System.exit(1);
+
+	}
+
+	public static void main(String[] args) throws IOException {
+
+		boolean headless = false;
+		int fps = 25, port = DEFAULT_PORT;
+		String host = null;
+
+		try {
+			for (int i = 0; i < args.length; i++) {
+				if (args[i].equals("--headless"))
+					headless = true;
+				else if (args[i].equals("--fps"))
+					fps = Math.max(1, Integer.parseInt(args[++i]));
+				else
+					host = args[i];
+			}
+
+			if (host != null && host.indexOf(':') >= 0) {
+				port = Integer.parseInt(host.substring(host.indexOf(':') + 1));
+				host = host.substring(0, host.indexOf(':'));
+			}
+		} catch (RuntimeException e) {
+			usage();
+		}
+
+		if (host == null)
+			usage();
+
+		Spectator spectator = new Spectator(host, port);
+
+		if (headless)
+			watchHeadless(spectator);
+		else
+			watchWindow(spectator, fps);
+
+	}
+
+	private static void watchHeadless(Spectator spectator) {
+
+		final int[] messages = new int[spectator.getArena().getTeamCount()];
+		int frames = 0;
+
+		spectator.addListener(new ReplayListener() {
+
+			@Override
+			public void score(int step, int team, int score) {
+			}
+
+			@Override
+			public void message(int step, int team, int from, int to, int length) {
+				if (team >= 0 && team < messages.length)
+					messages[team]++;
+			}
+
+			@Override
+			public void frame(ReplayArena arena) {
+			}
+		});
+
+		while (spectator.next())
+			frames++;
+
+		ReplayArena arena = spectator.getArena();
+
+		System.out.printf("Watched %d steps, the last one was step %d.\n", frames, arena.getStep());
+
+		for (int i = 0; i < arena.getTeamCount(); i++)
+			System.out.printf("%s scored %d points and sent %d messages.\n", arena.getTeamName(i),
+					arena.getScore(i), messages[i]);
+
+	}
+
+	/**
+	 * Shows the game in a window. The stream is read in its own thread. The
+	 * window asks for a copy of the arena at most <code>fps</code> times per
+	 * second and the reader makes it after the next frame, so the arena is not
+	 * copied for frames that are never shown.
+	 */
+	private static void watchWindow(final Spectator spectator, final int fps) {
+
+		final ReplayArena[] latest = new ReplayArena[] {new ReplayArena(spectator.getArena())};
+		final boolean[] connected = new boolean[] {true};
+		final boolean[] requested = new boolean[] {false};
+
+		Thread reader = new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+
+				while (spectator.next()) {
+
+					synchronized (latest) {
+						if (!requested[0])
+							continue;
+						requested[0] = false;
+					}
+
+					ReplayArena copy = new ReplayArena(spectator.getArena());
+
+					synchronized (latest) {
+						latest[0] = copy;
+					}
+				}
+
+				ReplayArena copy = new ReplayArena(spectator.getArena());
+
+				synchronized (latest) {
+					latest[0] = copy;
+					connected[0] = false;
+				}
+
+			}
+		}, "Spectator stream");
+
+		reader.setDaemon(true);
+		reader.start();
+
+		SwingUtilities.invokeLater(new Runnable() {
+
+			@Override
+			public void run() {
+
+				final SwingView view = new SwingView(12);
+				view.setStaticBackground(true);
+				final JLabel status = new JLabel();
+
+				JFrame frame = new JFrame("Spectator");
+
+				frame.getContentPane().add(new JScrollPane(view), BorderLayout.CENTER);
+				frame.getContentPane().add(status, BorderLayout.SOUTH);
+
+				Timer timer = new Timer(1000 / fps, new ActionListener() {
+
+					private ReplayArena shown = null;
+
+					@Override
+					public void actionPerformed(ActionEvent e) {
+
+						ReplayArena a;
+						boolean live;
+
+						synchronized (latest) {
+							a = latest[0];
+							live = connected[0];
+							requested[0] = true;
+						}
+
+						if (a == shown && live)
+							return;
+
+						shown = a;
+
+						StringBuilder sb = new StringBuilder(live ? "Step " + a.getStep() : "Disconnected at step " + a.getStep());
+						for (int i = 0; i < a.getTeamCount(); i++)
+							sb.append("  " + a.getTeamName(i) + ": " + a.getScore(i));
+						status.setText(sb.toString());
+
+						view.update(a);
+
+						if (!live)
+							((Timer) e.getSource()).stop();
+					}
+				});
+
+				timer.setCoalesce(true);
+
+				frame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
+				frame.setSize(800, 600);
+				frame.setVisible(true);
+
+				timer.start();
+			}
+		});
+
+	}
+
+}
@@ -18,15 +18,14 @@
 package org.grid.server;
 
 import java.util.HashSet;
-import java.util.LinkedList;
 import java.util.Set;
 
 import org.grid.arena.Arena;
+import org.grid.protocol.Neighborhood;
 import org.grid.protocol.NewMessage.Direction;
 import org.grid.server.Field.Body;
 import org.grid.server.Field.BodyPosition;
 import org.grid.server.Field.Cell;
-import org.grid.server.Game.MessageContainter;
 import org.grid.server.Team.Flag;
 import org.grid.server.Team.Headquarters;
 import org.grid.server.Team.TeamBody;
@@ -46,7 +45,13 @@ public class Agent extends TeamBody {
 
 	private Set<Flag> flags = new HashSet<Flag>();
 
-	private LinkedList<MessageContainter> messageQueue = new LinkedList<MessageContainter>();
+	// the end of the last message transmission in bytes (step * message.speed)
+	private long transmission = 0;
+
+	// the last scan of the agent and the snapshot it was taken from
+	private Neighborhood scan = null;
+
+	private FieldSnapshot scanSnapshot = null;
 	
 	public Agent(Team team, int id) {
 
@@ -58,17 +63,45 @@ public class Agent extends TeamBody {
 		return id;
 	}
 
+	/**
+	 * Returns the last scan of the agent if it was taken from the given
+	 * snapshot with the given size.
+	 */
+	synchronized Neighborhood getScan(FieldSnapshot snapshot, int size) {
+		return scanSnapshot == snapshot && scan != null && scan.getSize() == size ? scan : null;
+	}
+
+	synchronized void setScan(FieldSnapshot snapshot, Neighborhood scan) {
+		this.scanSnapshot = snapshot;
+		this.scan = scan;
+	}
+
 	public boolean move(Field arena) {
 
+		Movement.Plan plan = plan(arena);
+
+		return plan != null && apply(arena, plan);
+
+	}
+
+	/**
+	 * Computes the position of the agent after the current step without
+	 * changing the field.
+	 *
+	 * @param arena the field
+	 * @return the plan or null if the agent does not move
+	 */
+	public Movement.Plan plan(Field arena) {
+
 		synchronized (this) {
 
 			if (!isAlive())
-				return false;
+				return null;
 
 			BodyPosition position = arena.getPosition(this);
 
 			if (position == null)
-				return false;
+				return null;
 
 			float weight = 1;
 			
@@ -78,39 +111,65 @@ public class Agent extends TeamBody {
 			
 			float speed = 0.1f / weight;
 			
+			Direction next = direction;
+			
 			switch (direction) {
 			case DOWN:
 				position.setOffsetY(position.getOffsetY() + speed);
 				if (Math.abs(position.getOffsetY()) < speed) {
 					position.setOffsetY(0);
-					direction = Direction.NONE;
+					next = Direction.NONE;
 				}
 				break;
 			case UP:
 				position.setOffsetY(position.getOffsetY() - speed);
 				if (Math.abs(position.getOffsetY()) < speed) {
 					position.setOffsetY(0);
-					direction = Direction.NONE;
+					next = Direction.NONE;
 				}
 				break;
 			case LEFT:
 				position.setOffsetX(position.getOffsetX() - speed);
 				if (Math.abs(position.getOffsetX()) < speed) {
 					position.setOffsetX(0);
-					direction = Direction.NONE;
+					next = Direction.NONE;
 				}
 				break;
 			case RIGHT:
 				position.setOffsetX(position.getOffsetX() + speed);
 				if (Math.abs(position.getOffsetX()) < speed) {
 					position.setOffsetX(0);
-					direction = Direction.NONE;
+					next = Direction.NONE;
 				}
 				break;
 			default:
-				return false;
+				return null;
 			}
 
+			return new Movement.Plan(this, position, next);
+		}
+
+	}
+
+	/**
+	 * Moves the agent to the planned position. If the position is occupied, the
+	 * agent picks up a flag, drops its flags in the headquarters or collides.
+	 *
+	 * @param arena the field
+	 * @param plan the plan returned by {@link #plan(Field)}
+	 * @return false if the agent has died earlier in the step
+	 */
+	public boolean apply(Field arena, Movement.Plan plan) {
+
+		synchronized (this) {
+
+			if (!isAlive())
+				return false;
+
+			BodyPosition position = plan.getPosition();
+
+			direction = plan.getDirection();
+
 			// System.out.printf("%.1f %.1f %s\n", position.getOffsetX(),
 			// position.getOffsetY(), direction);
 
@@ -198,27 +257,19 @@ public class Agent extends TeamBody {
 		return flags.isEmpty() ? Arena.TILE_AGENT : Arena.TILE_AGENT_FLAG;
 	}
 
-	public void pushMessage(int to, byte[] message, int delay) {
-		
-		synchronized (messageQueue) {
-			messageQueue.add(new MessageContainter(to, message, delay));	
-		}
+	/**
+	 * Reserves the transmission of a message. Messages of an agent are
+	 * transmitted one after another.
+	 *
+	 * @param now the current time in bytes
+	 * @param length the length of the message
+	 * @return the time at which the transmission is finished in bytes
+	 */
+	long transmit(long now, int length) {
 		
-	}
-	
-	public MessageContainter pullMessage() {
+		transmission = Math.max(transmission, now) + length;
 		
-		synchronized (messageQueue) {
-		
-			MessageContainter m = messageQueue.peek();
-			
-			if (m == null) return null;
-			
-			if (m.decreaseDelay() > 0) return null;
-			
-			return messageQueue.poll();
-			
-		}
+		return transmission;
 		
 	}
 	
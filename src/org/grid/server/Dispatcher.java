@@ -18,15 +18,21 @@
 package org.grid.server;
 
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.EnumSet;
 import java.util.HashSet;
 import java.util.Vector;
 
 import org.grid.protocol.Neighborhood;
 import org.grid.protocol.NewMessage;
+import org.grid.protocol.NewMessage.Capability;
 import org.grid.protocol.NewMessage.Direction;
 import org.grid.protocol.NewMessage.RegisterMessage;
+import org.grid.protocol.ProtocolSelector;
 import org.grid.protocol.ProtocolSocket;
 
 
@@ -35,6 +41,9 @@ public class Dispatcher implements Runnable {
 
 	public static enum Status {UNKNOWN, REGISTERED, USED}
 	
+	// the maximum number of agents on a multiplexed connection
+	private static final int MAX_CHANNELS = 1024;
+	
 	public class Client extends ProtocolSocket {
 
 		private Status status;
@@ -45,25 +54,64 @@ public class Dispatcher implements Runnable {
 		
 		private int totalMessages = 0, scanMessages = 0, msgMessages = 0;
 		
+		private boolean awaitingMove = false;
+		
+		private boolean pendingScan = false;
+		
+		private Direction moveDirection = Direction.NONE;
+		
+		private boolean delta = false;
+		
+		private Neighborhood lastState = null;
+		
 		/**
-		 * Instantiates a new client.
+		 * Instantiates a new client. The client does not read any messages
+		 * before {@link #start()} is called.
 		 *
 		 * @param socket the socket
 		 * @throws IOException Signals that an I/O exception has occurred.
 		 */
 		public Client(Socket socket)
 				throws IOException {
-			super(socket);
+			super(socket, false);
+			listeners = new Vector<ClientListener>();
+			status = Status.UNKNOWN;
+		}
+		
+		/**
+		 * Instantiates a new client that is handled by the dispatcher selector.
+		 * The client does not read any messages before {@link #start()} is
+		 * called.
+		 *
+		 * @param channel the channel
+		 * @throws IOException Signals that an I/O exception has occurred.
+		 */
+		public Client(SocketChannel channel)
+				throws IOException {
+			super(channel, selector);
 			listeners = new Vector<ClientListener>();
 			status = Status.UNKNOWN;
 		}
 		
+		/**
+		 * Instantiates a new client for a channel of a multiplexed connection. The
+		 * client is registered to the team of the connection.
+		 *
+		 * @param connection the connection
+		 * @param id the id of the channel
+		 */
+		private Client(Client connection, int id) {
+			super(connection, id);
+			listeners = new Vector<ClientListener>();
+			status = Status.REGISTERED;
+			team = connection.team;
+			delta = connection.delta;
+		}
+		
 		/* (non-Javadoc)
-		 * @see org.grid.protocol.ProtocolSocket#handleMessage(org.grid.protocol.Message)
+		 * @see org.grid.protocol.ProtocolSocket#handleMessage(org.grid.protocol.NewMessage)
 		 */
-		protected void handleMessage(String msg) {
-			
-			NewMessage message = new NewMessage(msg);
+		protected void handleMessage(NewMessage message) {
 			
 			synchronized (this) {
 				totalMessages++;
@@ -103,13 +151,61 @@ public class Dispatcher implements Runnable {
 						
 					}
 					
-					Main.log("New client joined team " + team + ": " + this);
+					EnumSet<Capability> capabilities = xMessage.getCapabilities();
+					
+					// differences and channels are only sent in the binary format
+					if (!capabilities.contains(Capability.BINARY)) {
+						capabilities.remove(Capability.DELTA);
+						capabilities.remove(Capability.MULTIPLEX);
+					}
+					
+					int channels = xMessage.getChannels();
+					
+					if (capabilities.contains(Capability.MULTIPLEX) && channels > MAX_CHANNELS) {
+						Main.log("Rejected client %s for team %s: %d channels requested, at most %d allowed",
+								this, xMessage.getTeam(), channels, MAX_CHANNELS);
+						close();
+						return;
+					}
+					
+					if (channels < 1)
+						capabilities.remove(Capability.MULTIPLEX);
 					
-					team.addClient(this);
+					delta = capabilities.contains(Capability.DELTA);
 					
 					setStatus(Status.REGISTERED);
 					
-					sendMessage(new NewMessage.AcknowledgeMessage().encodeMessage());				
+					if (capabilities.contains(Capability.MULTIPLEX)) {
+						Main.log("New connection with %d clients joined team %s: %s", channels, team, this);
+					} else {
+						Main.log("New client joined team " + team + ": " + this);
+						team.addClient(this);
+					}
+					
+					if (capabilities.isEmpty()) {
+						sendMessage(new NewMessage.AcknowledgeMessage());
+					} else {
+						// the acknowledgement is still sent in the text format
+						sendMessage(new NewMessage.AcknowledgeMessage(capabilities));
+						setBinary(capabilities.contains(Capability.BINARY));
+					}
+					
+					// the connection itself never gets an agent, only its channels do
+					if (capabilities.contains(Capability.MULTIPLEX)) {
+						for (int i = 0; i < channels; i++) {
+							Client client = new Client(this, i);
+							
+							synchronized (clients) {
+								clients.add(client);
+							}
+							
+							team.addClient(client);
+							
+							// the connection may have been closed in the meantime
+							if (client.isClosed())
+								client.onTerminate();
+						}
+					}
 				}
 				
 				break;
@@ -133,13 +229,16 @@ public class Dispatcher implements Runnable {
 					scanMessages++;
 					
 					Neighborhood n = game.scanNeighborhood(neighborhoodSize, getAgent());
-					while(n == null)
-					{
-						System.err.println("Scanning neighborhood for agent " + getAgent().getId() + " was unsuccessful. Retrying..");
-						n = game.scanNeighborhood(neighborhoodSize, getAgent());
+					
+					if (n == null) {
+						// the agent is not in the last snapshot yet, answer at the end of the step
+						synchronized (this) {
+							pendingScan = true;
+						}
+						return;
 					}
 					
-					sendMessage(new NewMessage.StateMessage(getAgent().getDirection(), n, agent.hasFlag()).encodeMessage());
+					sendState(getAgent().getDirection(), n, agent.hasFlag());
 					
 					return;
 				}
@@ -152,46 +251,43 @@ public class Dispatcher implements Runnable {
 					
 					int to = xMessage.getTo();
 					
-					if (xMessage.getMessage() == null || xMessage.getMessage().length > maxMessageSize) {
+					byte[] payload = xMessage.getMessage();
+					
+					if (payload == null || payload.length > maxMessageSize) {
 						Main.log("Message from %d to %d rejected: too long", agent.getId(), to);
 						return;
 					}
 					
-					game.message(team, agent.getId(), to, xMessage.getMessage());						
+					game.message(team, agent.getId(), to, payload);						
 					
 					return;
 				}				
 
+				if (message.getMessageType() == NewMessage.MessageType.MULTICAST) {
+					
+					msgMessages++;
+					
+					NewMessage.MulticastMessage xMessage = new NewMessage.MulticastMessage(message);
+					
+					byte[] payload = xMessage.getMessage();
+					
+					if (payload == null || payload.length > maxMessageSize) {
+						Main.log("Message from %d rejected: too long", agent.getId());
+						return;
+					}
+					
+					game.multicast(team, agent.getId(), xMessage.getRecipients(), payload);
+					
+					return;
+				}
+
 				if (message.getMessageType() == NewMessage.MessageType.MOVE) {
 						
 					NewMessage.MoveMessage xMessage = new NewMessage.MoveMessage(message);
 					
+					// the state is sent by completeMove() once the move is finished
 					game.move(team, agent.getId(), xMessage.getDirection());
 					
-					//wait with sending state until agent is moving
-					while(getAgent() != null 
-							&& getAgent().isAlive() 
-							&& getAgent().getDirection() != Direction.NONE)
-					{
-						try {
-							Thread.sleep(100);
-						} catch (InterruptedException e) {
-							e.printStackTrace();
-						}
-					}
-					
-					//after moving agent, if it is still alive, reply with current state					
-					if(getAgent() != null && getAgent().isAlive())
-					{
-						Neighborhood n = game.scanNeighborhood(neighborhoodSize, getAgent());
-						while(n == null)
-						{
-							System.err.println("Rescanning neighborhood...");
-							n = game.scanNeighborhood(neighborhoodSize, getAgent());
-						}
-						sendMessage(new NewMessage.StateMessage(xMessage.getDirection(), n, agent.hasFlag()).encodeMessage());
-					}
-					
 					return;
 				}	
 				
@@ -204,6 +300,91 @@ public class Dispatcher implements Runnable {
 		public Agent getAgent() {
 			return agent;
 		}
+		
+		/**
+		 * Marks that the client is waiting for the requested move to finish. Called
+		 * by the game when the move command is applied to the agent.
+		 *
+		 * @param direction the requested direction
+		 */
+		protected void awaitMove(Direction direction) {
+			
+			synchronized (this) {
+				awaitingMove = true;
+				moveDirection = direction;
+			}
+			
+		}
+		
+		/**
+		 * Called by the game at the end of each step. If the client is waiting for
+		 * a move to finish and the agent has stopped or if a scan could not be
+		 * answered during the step, the current state is sent to the client.
+		 */
+		protected void completeMove() {
+			
+			Agent agent = this.agent;
+			
+			if (agent == null)
+				return;
+			
+			Direction direction;
+			
+			synchronized (this) {
+				if (awaitingMove && agent.getDirection() == Direction.NONE) {
+					awaitingMove = false;
+					pendingScan = false;
+					direction = moveDirection;
+				} else if (pendingScan) {
+					pendingScan = false;
+					direction = agent.getDirection();
+				} else {
+					return;
+				}
+			}
+			
+			//after moving agent, if it is still alive, reply with current state
+			if (!agent.isAlive())
+				return;
+			
+			Neighborhood n = game.scanNeighborhood(neighborhoodSize, agent);
+			
+			if (n == null)
+				return;
+			
+			sendState(direction, n, agent.hasFlag());
+			
+		}
+
+		/**
+		 * Sends the state of the agent. If the client has enabled the delta mode,
+		 * only the difference to the previously sent neighborhood is sent.
+		 *
+		 * @param direction the direction of the agent
+		 * @param n the neighborhood of the agent
+		 * @param hasFlag does the agent carry a flag
+		 */
+		private synchronized void sendState(Direction direction, Neighborhood n, boolean hasFlag) {
+			
+			if (!delta) {
+				sendMessage(new NewMessage.StateMessage(direction, n, hasFlag));
+				return;
+			}
+			
+			byte[] packed = null;
+			
+			if (lastState != null)
+				packed = n.getPackedDelta(lastState, n.getOriginX() - lastState.getOriginX(),
+						n.getOriginY() - lastState.getOriginY());
+			
+			if (packed == null)
+				packed = n.getPackedGrid();
+			
+			lastState = n;
+			
+			sendMessage(new NewMessage.StateMessage(direction, n.getSize(), packed, hasFlag));
+			
+		}
 
 		public Team getTeam() {
 			return team;
@@ -213,18 +394,24 @@ public class Dispatcher implements Runnable {
 		
 			if (this.agent != null) {
 				setStatus(Status.REGISTERED);
-				sendMessage(new NewMessage.TerminateMessage().encodeMessage());
+				sendMessage(new NewMessage.TerminateMessage());
 			}
 			
 			this.agent = agent;
 			
+			synchronized (this) {
+				awaitingMove = false;
+				pendingScan = false;
+				lastState = null;
+			}
+			
 			agent(agent);
 			
 			if (agent == null)
 				return;
 
 			setStatus(Status.REGISTERED);
-			sendMessage(new NewMessage.InitializeMessage(agent.getId(), maxMessageSize, game.getSpeed()).encodeMessage());
+			sendMessage(new NewMessage.InitializeMessage(agent.getId(), maxMessageSize, game.getSpeed()));
 			
 		}
 
@@ -249,6 +436,9 @@ public class Dispatcher implements Runnable {
 		 */
 		public String toString() {
 			
+			if (getChannelId() >= 0)
+				return getRemoteAddress() + ":" + getRemotePort() + "#" + getChannelId();
+			
 			return getRemoteAddress() + ":" + getRemotePort(); 
 			
 		}
@@ -353,7 +543,20 @@ public class Dispatcher implements Runnable {
 			
 			if (status != Status.USED) return;
 			
-			sendMessage(new NewMessage.ReceiveMessage(from, message).encodeMessage());
+			sendMessage(new NewMessage.ReceiveMessage(from, message));
+			
+		}
+		
+		/**
+		 * Send a message that may be shared with other clients.
+		 *
+		 * @param message the message
+		 */
+		public void send(NewMessage.ReceiveMessage message) {
+			
+			if (status != Status.USED) return;
+			
+			sendMessage(message);
 			
 		}
 		
@@ -368,12 +571,18 @@ public class Dispatcher implements Runnable {
 	
 	private ServerSocket socket;
 	
+	private ServerSocketChannel channel;
+	
+	private ProtocolSelector selector;
+	
 	private Game game;
 	
 	private int maxMessageSize = 2048;
 	
 	private int neighborhoodSize = 5;	
 	
+	private int maxFrameSize = 64 * 1024 * 1024;
+	
 	/**
 	 * Instantiates a new dispatcher.
 	 *
@@ -383,7 +592,15 @@ public class Dispatcher implements Runnable {
 	 */
 	public Dispatcher(int port, Game game) throws IOException {
 		
-		socket = new ServerSocket(port);
+		int selectors = game.getProperty("server.selectors", 0);
+		
+		if (selectors > 0) {
+			channel = ServerSocketChannel.open();
+			channel.socket().bind(new InetSocketAddress(port));
+			selector = new ProtocolSelector(selectors, game.getProperty("server.handlers", 4));
+		} else {
+			socket = new ServerSocket(port);
+		}
 		
 		this.game = game;
 		
@@ -391,6 +608,8 @@ public class Dispatcher implements Runnable {
 
 		this.neighborhoodSize = game.getNeighborhoodSize();
 		
+		this.maxFrameSize = Math.max(1, Math.min(2047, game.getProperty("server.frame", 64))) * 1024 * 1024;
+		
 	}
 
 	/* (non-Javadoc)
@@ -431,12 +650,27 @@ public class Dispatcher implements Runnable {
 		
 		while (true) {
 			try {
-				Socket sck = socket.accept();
-				sck.setTcpNoDelay(true);
+				Client client;
+				
+				if (channel != null) {
+					SocketChannel sck = channel.accept();
+					sck.socket().setTcpNoDelay(true);
+					client = new Client(sck);
+				} else {
+					Socket sck = socket.accept();
+					sck.setTcpNoDelay(true);
+					client = new Client(sck);
+				}
+				
+				client.setMaxFrameSize(maxFrameSize);
+				
 				synchronized (clients) {
-					clients.add(new Client(sck));
+					clients.add(client);
 				}
 				
+				// the client is complete, its messages can be handled now
+				client.start();
+				
 				
 			} catch (IOException e) {
 				e.printStackTrace();
@@ -24,11 +24,13 @@ import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collection;
 import java.util.HashSet;
-import java.util.Hashtable;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Random;
 import java.util.Set;
 import java.util.Vector;
 
@@ -132,6 +134,8 @@ public class Field implements Arena {
 		
 		private int tile;
 		
+		private int index = -1;
+		
 		public Body(int tile) {
 			this.tile = tile;
 		}
@@ -140,6 +144,10 @@ public class Field implements Arena {
 			return tile;
 		}
 		
+		int getIndex() {
+			return index;
+		}
+		
 	}
 	
 	public static class Wall extends Body {
@@ -246,105 +254,255 @@ public class Field implements Arena {
 		
 	}
 	
+	/**
+	 * A view of a single cell of the field. The state of the cell is stored in
+	 * the arrays of the field, so cells are created on demand and can be
+	 * discarded at any time.
+	 */
 	public class Cell {
 
-		private Position position;
-		
-		private float offsetX = 0, offsetY = 0;
+		private int index;
 		
-		private Body body = null;
-		
-		private int tile;
-		
-		protected Cell(Position position, int tile) {
+		protected Cell(int index) {
 
-			this.position = position;
-			this.tile = tile;
+			this.index = index;
 			
 		}
 		
 		public boolean isEmpty() {
 			
-			return body == null;
+			return occupants[index] == EMPTY;
 			
 		}
 		
 		public int getTile() {
 			
-			return tile;
+			return tiles[index];
 			
 		}
 
 		public Body getBody() {
 			
-			return body;
+			return bodyAt(index);
 			
 		}
 		
 		public Position getPosition() {
-			return new Position(this.position);
+			return new Position(index % width, index / width);
 		}
 		
 		private boolean placeBody(Body body, float offsetX, float offsetY) {
 			
-			if (!isEmpty() && this.body != body) 
-				return false;
-				
-			synchronized (positions) {
-				Cell c = positions.get(body);
-				
-				if (c != null) 
-					c.body = null;
-
-				positions.remove(body);
-				positions.put(body, this);
-				this.body = body;				
-			}
-
-			this.offsetX = offsetX;
-			
-			this.offsetY = offsetY;
+			return Field.this.placeBody(index, body, offsetX, offsetY);
 			
-			return true;
 		}
 		
 		public float getBodyOffsetX() {
-			return offsetX;
+			return Field.this.getBodyOffsetX(index % width, index / width);
 		}
 
 		public float getBodyOffsetY() {
-			return offsetY;
+			return Field.this.getBodyOffsetY(index % width, index / width);
+		}
+		
+		@Override
+		public boolean equals(Object obj) {
+			return obj instanceof Cell && ((Cell) obj).index == index;
+		}
+		
+		@Override
+		public int hashCode() {
+			return index;
 		}
 		
 		@Override
 		public String toString() {
-			return String.format("Cell [%d, %d]", position.getX(), position.getY());
+			return String.format("Cell [%d, %d]", index % width, index / width);
+		}
+		
+	}
+	
+	/**
+	 * The per body arrays: the body, its cell, offsets, type and team. The arrays
+	 * are replaced together when they grow, so a reader that takes them from
+	 * a single read of {@link Field#store} always sees arrays of the same length.
+	 */
+	private static class BodyStore {
+		
+		final Body[] bodies;
+		
+		final int[] cells;
+		
+		final float[] offsetsX, offsetsY;
+		
+		final byte[] types;
+		
+		final int[] teams;
+		
+		public BodyStore(int capacity) {
+			bodies = new Body[capacity];
+			cells = new int[capacity];
+			offsetsX = new float[capacity];
+			offsetsY = new float[capacity];
+			types = new byte[capacity];
+			teams = new int[capacity];
+		}
+		
+		public BodyStore(BodyStore store, int capacity) {
+			bodies = Arrays.copyOf(store.bodies, capacity);
+			cells = Arrays.copyOf(store.cells, capacity);
+			offsetsX = Arrays.copyOf(store.offsetsX, capacity);
+			offsetsY = Arrays.copyOf(store.offsetsY, capacity);
+			types = Arrays.copyOf(store.types, capacity);
+			teams = Arrays.copyOf(store.teams, capacity);
+		}
+		
+	}
+	
+	/**
+	 * A set of cell indices with constant time updates and random sampling.
+	 */
+	private static class CellSet {
+		
+		private int[] members;
+		
+		private int[] positions;
+		
+		private int size = 0;
+		
+		public CellSet(int cells) {
+			members = new int[cells];
+			positions = new int[cells];
+			Arrays.fill(positions, -1);
+		}
+		
+		public void add(int cell) {
+			if (positions[cell] >= 0)
+				return;
+			positions[cell] = size;
+			members[size++] = cell;
+		}
+		
+		public void remove(int cell) {
+			int p = positions[cell];
+			if (p < 0)
+				return;
+			int last = members[--size];
+			members[p] = last;
+			positions[last] = p;
+			positions[cell] = -1;
+		}
+		
+		public int size() {
+			return size;
+		}
+		
+		public int get(int i) {
+			return members[i];
+		}
+		
+		/**
+		 * Returns distinct random members of the set by partially shuffling the
+		 * members in place.
+		 */
+		public int[] sample(int count, Random random) {
+			
+			count = Math.min(count, size);
+			
+			int[] result = new int[count];
+			
+			for (int i = 0; i < count; i++) {
+				int j = i + random.nextInt(size - i);
+				int c = members[j];
+				members[j] = members[i];
+				positions[members[j]] = j;
+				members[i] = c;
+				positions[c] = i;
+				result[i] = c;
+			}
+			
+			return result;
 		}
 		
 	}
 	
-	private Hashtable<Body, Cell> positions = new Hashtable<Body, Cell>();
+	public static final byte TYPE_NONE = 0;
+	
+	public static final byte TYPE_WALL = 1;
+	
+	public static final byte TYPE_HEADQUARTERS = 2;
+	
+	public static final byte TYPE_FLAG = 3;
+	
+	public static final byte TYPE_AGENT = 4;
 	
-	private Cell[] cells; 
+	static final int EMPTY = -1;
+	
+	static final int WALL = -2;
+	
+	private static final int WALL_VARIANTS = 10;
+	
+	private static final Wall[] walls = new Wall[WALL_VARIANTS];
+	
+	static {
+		for (int i = 0; i < WALL_VARIANTS; i++)
+			walls[i] = new Wall(Arena.TILE_WALL_0 + i);
+	}
 	
 	private int width, height;
 	
+	// per cell: base tile and the index of the body in the cell (EMPTY, or
+	// WALL - variant for walls, which are not stored as bodies)
+	private byte[] tiles;
+	
+	private int[] occupants;
+	
+	// per body arrays, modified only while holding the lock of the field and
+	// read without it
+	private volatile BodyStore store = new BodyStore(64);
+	
+	private int bodyCount = 0;
+	
+	private int[] freeBodies = new int[16];
+	
+	private int freeCount = 0;
+	
+	// empty cells and empty cells with empty neighbors, updated on every change
+	private CellSet emptyCells, emptyNeighborhoodCells;
+	
+	private Random random = new Random();
+	
+	// cells changed since the last published snapshot
+	private BitSet changed;
+	
+	private int[] changedCells = new int[64];
+	
+	private int changedCount = 0;
+	
+	private FieldSnapshot snapshot = null;
+	
 	public Field(int width, int height) {
 		
 		this.width = width;
 		this.height = height;
-		cells = new Cell[width * height];
+		tiles = new byte[width * height];
+		occupants = new int[width * height];
 		
-		int n = 0;
+		Arrays.fill(occupants, EMPTY);
 		
-		for (int j = 0; j < height; j++) {
-			for (int i = 0; i < width; i++) {
-				
-				int grass = ((int) (Math.random() * 10)) % 9;
+		emptyCells = new CellSet(width * height);
+		emptyNeighborhoodCells = new CellSet(width * height);
+		changed = new BitSet(width * height);
+		
+		for (int n = 0; n < occupants.length; n++) {
+			emptyCells.add(n);
+			emptyNeighborhoodCells.add(n);
+		}
+		
+		for (int n = 0; n < tiles.length; n++) {
 				
-				cells[n++] = new Cell(new Position(i, j), grass);
+			tiles[n] = (byte) (((int) (Math.random() * 10)) % 9);
 				
-			}
 		}
 		
 	}
@@ -375,7 +533,7 @@ public class Field implements Arena {
 			
 			int wall = Arena.TILE_WALL_0 + ((int) (Math.random() * 10)) % 9;
 			
-			arena.getCell(p.getX(), p.getY()).body = new Wall(wall);
+			arena.putWall(p.getX(), p.getY(), wall);
 			
 		}
 		
@@ -526,15 +684,133 @@ public class Field implements Arena {
 		if (x < 0 || x >= width || y < 0 || y >= height)
 			return null;
 		
-		return cells[y * width + x]; 
+		return new Cell(y * width + x); 
 		
 	}
 
+	/**
+	 * Checks if the position is inside the field.
+	 */
+	public boolean contains(int x, int y) {
+		
+		return x >= 0 && x < width && y >= 0 && y < height;
+		
+	}
+	
+	/**
+	 * Returns the body in the given cell.
+	 *
+	 * @return the body or null if the cell is empty or outside of the field
+	 */
+	public Body getBody(int x, int y) {
+		
+		if (x < 0 || x >= width || y < 0 || y >= height)
+			return null;
+		
+		return bodyAt(y * width + x);
+		
+	}
+	
+	/**
+	 * Returns the type of the body in the given cell (one of the TYPE
+	 * constants). Cells outside of the field are walls.
+	 */
+	public byte getBodyType(int x, int y) {
+		
+		if (x < 0 || x >= width || y < 0 || y >= height)
+			return TYPE_WALL;
+		
+		int b = occupants[y * width + x];
+		
+		if (b == EMPTY)
+			return TYPE_NONE;
+		
+		if (b < EMPTY)
+			return TYPE_WALL;
+		
+		byte[] types = store.types;
+		
+		return b < types.length ? types[b] : TYPE_NONE;
+		
+	}
+	
+	/**
+	 * Returns the index of the team of the body in the given cell or -1 if the
+	 * cell does not contain a team body.
+	 */
+	public int getBodyTeam(int x, int y) {
+		
+		if (x < 0 || x >= width || y < 0 || y >= height)
+			return -1;
+		
+		int b = occupants[y * width + x];
+		int[] teams = store.teams;
+		
+		return b >= 0 && b < teams.length ? teams[b] : -1;
+		
+	}
+	
 	public BodyPosition getPosition(Body body) {
 		
-		Cell cell = positions.get(body);
+		int b = body.index;
+		
+		if (b < 0)
+			return null;
+		
+		BodyStore s = store;
+		
+		if (b >= s.cells.length)
+			return null;
+		
+		int c = s.cells[b];
+		
+		return new BodyPosition(c % width, c / width, s.offsetsX[b], s.offsetsY[b]);
+	}
+	
+	/**
+	 * Returns the horizontal position of the body without allocating a
+	 * position object.
+	 *
+	 * @return the position or -1 if the body is not in the field
+	 */
+	public int getBodyX(Body body) {
+		
+		int b = body.index;
+		int[] cells = store.cells;
+		
+		return b < 0 || b >= cells.length ? -1 : cells[b] % width;
+		
+	}
+	
+	/**
+	 * Returns the vertical position of the body without allocating a position
+	 * object.
+	 *
+	 * @return the position or -1 if the body is not in the field
+	 */
+	public int getBodyY(Body body) {
+		
+		int b = body.index;
+		int[] cells = store.cells;
+		
+		return b < 0 || b >= cells.length ? -1 : cells[b] / width;
+		
+	}
+	
+	private Body bodyAt(int cell) {
+		
+		int b = occupants[cell];
+		
+		if (b == EMPTY)
+			return null;
+		
+		if (b < EMPTY)
+			return walls[WALL - b];
+		
+		Body[] all = store.bodies;
+		
+		return b < all.length ? all[b] : null;
 		
-		return cell == null ? null : new BodyPosition(cell.position, cell.offsetX, cell.offsetY);
 	}
 	
 	public Collection<Cell> getNeighborhood(int x, int y) {
@@ -600,57 +876,270 @@ public class Field implements Arena {
 	
 	public void removeBody(Body body) {
 		
-		BodyPosition bp = getPosition(body);
+		synchronized (this) {
+			
+			int b = body.index;
+			
+			if (b < 0)
+				return;
+			
+			BodyStore s = store;
+			
+			if (occupants[s.cells[b]] == b)
+				setOccupant(s.cells[b], EMPTY);
+			
+			s.bodies[b] = null;
+			body.index = -1;
+			
+			if (freeCount == freeBodies.length)
+				freeBodies = Arrays.copyOf(freeBodies, freeCount * 2);
+			
+			freeBodies[freeCount++] = b;
+		}
+
+	}
+
+	/**
+	 * Places a wall into the given cell. Walls are not stored as bodies, the
+	 * cell only remembers the variant of the wall tile.
+	 */
+	private void putWall(int x, int y, int tile) {
+		
+		setOccupant(y * width + x, WALL - Math.max(0, Math.min(WALL_VARIANTS - 1, tile - Arena.TILE_WALL_0)));
+		
+	}
+	
+	private synchronized boolean placeBody(int cell, Body body, float offsetX, float offsetY) {
+		
+		int o = occupants[cell];
+		int b = body.index;
+		
+		if (o != EMPTY && (b < 0 || o != b))
+			return false;
+		
+		BodyStore s;
+		
+		if (b < 0) {
+			b = allocateBody(body);
+			s = store;
+		} else {
+			s = store;
+			if (s.cells[b] != cell && occupants[s.cells[b]] == b)
+				setOccupant(s.cells[b], EMPTY);
+		}
+		
+		if (s.offsetsX[b] != offsetX || s.offsetsY[b] != offsetY)
+			markChanged(cell);
+		
+		s.cells[b] = cell;
+		s.offsetsX[b] = offsetX;
+		s.offsetsY[b] = offsetY;
+		setOccupant(cell, b);
+		
+		return true;
+		
+	}
+	
+	/**
+	 * Changes the occupant of a cell and updates the indices of empty cells.
+	 */
+	private void setOccupant(int cell, int occupant) {
+		
+		boolean wasEmpty = occupants[cell] == EMPTY;
 		
-		if (bp == null)
+		if (occupants[cell] != occupant)
+			markChanged(cell);
+		
+		occupants[cell] = occupant;
+		
+		if (wasEmpty == (occupant == EMPTY))
 			return;
 		
-		Cell cell = getCell(bp.getX(), bp.getY());
+		if (occupant == EMPTY)
+			emptyCells.add(cell);
+		else
+			emptyCells.remove(cell);
 		
-		if (cell == null)
+		int x = cell % width, y = cell / width;
+		
+		updateEmptyNeighborhood(x, y);
+		updateEmptyNeighborhood(x - 1, y);
+		updateEmptyNeighborhood(x + 1, y);
+		updateEmptyNeighborhood(x, y - 1);
+		updateEmptyNeighborhood(x, y + 1);
+		
+	}
+	
+	private void markChanged(int cell) {
+		
+		if (changed.get(cell))
 			return;
 		
-		synchronized (positions) {
-			cell.body = null;
-			positions.remove(body);			
+		changed.set(cell);
+		
+		if (changedCount == changedCells.length)
+			changedCells = Arrays.copyOf(changedCells, changedCount * 2);
+		
+		changedCells[changedCount++] = cell;
+		
+	}
+	
+	/**
+	 * Publishes the current state of the field as an immutable snapshot. Only
+	 * the blocks of cells that changed since the previous snapshot are copied,
+	 * the others are shared with it.
+	 *
+	 * @param step the current step of the game
+	 * @param teams the number of teams
+	 * @return the new snapshot
+	 */
+	public synchronized FieldSnapshot publish(int step, int teams) {
+		
+		int blockCount = (occupants.length + FieldSnapshot.BLOCK_SIZE - 1) >> FieldSnapshot.BLOCK_SHIFT;
+		int[][] blocks;
+		
+		if (snapshot == null) {
+			blocks = new int[blockCount][];
+			for (int i = 0; i < blockCount; i++)
+				blocks[i] = copyBlock(i);
+		} else {
+			blocks = snapshot.getBlocks().clone();
+			boolean[] copied = new boolean[blockCount];
+			for (int i = 0; i < changedCount; i++) {
+				int block = changedCells[i] >> FieldSnapshot.BLOCK_SHIFT;
+				if (copied[block])
+					continue;
+				blocks[block] = copyBlock(block);
+				copied[block] = true;
+			}
 		}
-
+		
+		int[] changes = Arrays.copyOf(changedCells, changedCount);
+		
+		for (int i = 0; i < changedCount; i++)
+			changed.clear(changedCells[i]);
+		
+		changedCount = 0;
+		
+		BodyStore s = store;
+		
+		snapshot = new FieldSnapshot(snapshot, step, width, height, tiles, blocks,
+				Arrays.copyOf(s.bodies, bodyCount), Arrays.copyOf(s.cells, bodyCount),
+				Arrays.copyOf(s.offsetsX, bodyCount), Arrays.copyOf(s.offsetsY, bodyCount),
+				Arrays.copyOf(s.types, bodyCount), Arrays.copyOf(s.teams, bodyCount), changes, teams);
+		
+		return snapshot;
+		
+	}
+	
+	private int[] copyBlock(int block) {
+		
+		int start = block << FieldSnapshot.BLOCK_SHIFT;
+		
+		return Arrays.copyOfRange(occupants, start, Math.min(occupants.length, start + FieldSnapshot.BLOCK_SIZE));
+		
+	}
+	
+	private void updateEmptyNeighborhood(int x, int y) {
+		
+		if (!contains(x, y))
+			return;
+		
+		int cell = y * width + x;
+		
+		if (occupants[cell] == EMPTY && isFree(x - 1, y) && isFree(x + 1, y)
+				&& isFree(x, y - 1) && isFree(x, y + 1))
+			emptyNeighborhoodCells.add(cell);
+		else
+			emptyNeighborhoodCells.remove(cell);
+		
+	}
+	
+	/**
+	 * Cells outside of the field do not count as neighbors.
+	 */
+	private boolean isFree(int x, int y) {
+		
+		return !contains(x, y) || occupants[y * width + x] == EMPTY;
+		
+	}
+	
+	private int allocateBody(Body body) {
+		
+		int b;
+		
+		if (freeCount > 0) {
+			b = freeBodies[--freeCount];
+		} else {
+			b = bodyCount++;
+			
+			if (b >= store.bodies.length)
+				store = new BodyStore(store, store.bodies.length * 2);
+		}
+		
+		byte type = TYPE_NONE;
+		int team = -1;
+		
+		if (body instanceof Wall)
+			type = TYPE_WALL;
+		else if (body instanceof Team.Headquarters)
+			type = TYPE_HEADQUARTERS;
+		else if (body instanceof Team.Flag)
+			type = TYPE_FLAG;
+		else if (body instanceof Agent)
+			type = TYPE_AGENT;
+		
+		if (body instanceof TeamBody)
+			team = ((TeamBody) body).getTeam().getIndex();
+		
+		BodyStore s = store;
+		
+		s.types[b] = type;
+		s.teams[b] = team;
+		s.bodies[b] = body;
+		body.index = b;
+		
+		return b;
+		
 	}
 
 	@Override
 	public int getBodyTile(int x, int y) {
 
-		Cell c = getCell(x, y);
-		if (c != null && c.getBody() != null)
-			return c.getBody().getTile();
+		Body b = getBody(x, y);
+		if (b != null)
+			return b.getTile();
 
 		return 0;
 	}
 
 	@Override
 	public float getBodyOffsetX(int x, int y) {
-		Cell c = getCell(x, y);
-		if (c != null && c.getBody() != null)
-			return c.getBodyOffsetX();
-
-		return 0;
+		if (!contains(x, y))
+			return 0;
+		
+		int b = occupants[y * width + x];
+		float[] offsets = store.offsetsX;
+		
+		return b >= 0 && b < offsets.length ? offsets[b] : 0;
 	}
 
 	@Override
 	public float getBodyOffsetY(int x, int y) {
-		Cell c = getCell(x, y);
-		if (c != null && c.getBody() != null)
-			return c.getBodyOffsetY();
-
-		return 0;
+		if (!contains(x, y))
+			return 0;
+		
+		int b = occupants[y * width + x];
+		float[] offsets = store.offsetsY;
+		
+		return b >= 0 && b < offsets.length ? offsets[b] : 0;
 	}
 
 	@Override
 	public int getBaseTile(int x, int y) {
 
-		Cell c = getCell(x, y);
-		if (c != null)
-			return c.getTile();
+		if (contains(x, y))
+			return tiles[y * width + x];
 
 		return 0;
 	}
@@ -658,47 +1147,51 @@ public class Field implements Arena {
 
 	@Override
 	public Color getBodyColor(int x, int y) {
-		Cell c = getCell(x, y);
-		if (c != null && c.getBody() != null
-				&& (c.getBody() instanceof TeamBody))
-			return ((TeamBody) c.getBody()).getTeam().getColor();
+		Body b = getBody(x, y);
+		if (b instanceof TeamBody)
+			return ((TeamBody) b).getTeam().getColor();
 
 		return null;
 	}
 
 	public List<Cell> listEmptyFields(boolean emptyNeighborhood) {
 		
-		Vector<Cell> list = new Vector<Cell>();
-		
-		for (int j = 0; j < height; j++) {
+		synchronized (this) {
+			
+			CellSet set = emptyNeighborhood ? emptyNeighborhoodCells : emptyCells;
+			
+			Vector<Cell> list = new Vector<Cell>(set.size());
+			
+			for (int i = 0; i < set.size(); i++)
+				list.add(new Cell(set.get(i)));
+			
+			return list;
+		}
 		
-			for (int i = 0; i < width; i++) {
-				
-				Cell c = cells[j * width + i];
-				
-				if (!c.isEmpty()) continue;
-				
-				if (emptyNeighborhood) {
-					
-					boolean empty = true;
-					
-					for (Cell n : getNeighborhood(i, j)) {
-						
-						empty &= n.isEmpty();
-						
-					}
-					
-					if (!empty)
-						continue;
-						
-				}
-				
-				list.add(c);
-				
-			}
+	}
+	
+	/**
+	 * Returns distinct randomly chosen empty cells. The cost depends only on the
+	 * number of requested cells.
+	 *
+	 * @param count the number of cells
+	 * @param emptyNeighborhood should the neighbors of the cells also be empty
+	 * @return the list of cells (shorter than requested if there are not enough
+	 * empty cells)
+	 */
+	public List<Cell> sampleEmptyFields(int count, boolean emptyNeighborhood) {
+		
+		synchronized (this) {
+			
+			CellSet set = emptyNeighborhood ? emptyNeighborhoodCells : emptyCells;
+			
+			Vector<Cell> list = new Vector<Cell>(Math.min(count, set.size()));
+			
+			for (int cell : set.sample(count, random))
+				list.add(new Cell(cell));
 			
+			return list;
 		}
 		
-		return list;
 	}
 }
@@ -0,0 +1,511 @@
+/*
+ *  AgentField - a simple capture-the-flag simulation for distributed intelligence
+ *  Copyright (C) 2011 Luka Cehovin <http://vicos.fri.uni-lj.si/lukacu>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.grid.server;
+
+import java.awt.Color;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import org.grid.arena.Arena;
+import org.grid.arena.TrackedArena;
+import org.grid.protocol.Neighborhood;
+import org.grid.server.Field.Body;
+import org.grid.server.Field.BodyPosition;
+
+/**
+ * An immutable copy of the field as it was at the end of a step. Snapshots are
+ * published by {@link Field#publish(int, int)} and can be read from any thread
+ * without locking. Consecutive snapshots share the blocks of cells that have
+ * not changed between them.
+ * <p>
+ * For every team the snapshot also holds the cells as seen by the team (the
+ * codes of {@link Neighborhood}), so neighborhood scans are plain row copies.
+ * The changed cells of the last {@value #CHANGES_HISTORY} snapshots are kept,
+ * so a view that skips snapshots can still find out what has changed.
+ */
+public class FieldSnapshot implements TrackedArena {
+
+	static final int BLOCK_SHIFT = 10;
+
+	static final int BLOCK_SIZE = 1 << BLOCK_SHIFT;
+
+	static final int CHANGES_HISTORY = 256;
+
+	/**
+	 * The changed cells of a snapshot, linked to the changes of the previous
+	 * snapshots. The link is cut when the changes get too old.
+	 */
+	private static class Changes {
+
+		private int[] cells;
+
+		private volatile Changes previous;
+
+		public Changes(int[] cells, Changes previous) {
+			this.cells = cells;
+			this.previous = previous;
+		}
+
+	}
+
+	private int step;
+
+	private int width, height;
+
+	// shared with the field, the base tiles never change
+	private byte[] tiles;
+
+	// occupants of the cells, split into blocks of BLOCK_SIZE cells
+	private int[][] blocks;
+
+	// per body: the body, its cell, offsets, type, team, tile, color and agent id
+	private Body[] bodies;
+
+	private int[] bodyCells;
+
+	private float[] offsetsX, offsetsY;
+
+	private byte[] bodyTypes;
+
+	private int[] bodyTeams;
+
+	private int[] bodyTiles;
+
+	private Color[] bodyColors;
+
+	private int[] agentIds;
+
+	private int[] changedCells;
+
+	private Changes changes;
+
+	// per team: the neighborhood codes of the cells, in the same blocks as the occupants
+	private int[][][] codes;
+
+	FieldSnapshot(FieldSnapshot previous, int step, int width, int height, byte[] tiles,
+			int[][] blocks, Body[] bodies, int[] bodyCells, float[] offsetsX, float[] offsetsY,
+			byte[] bodyTypes, int[] bodyTeams, int[] changedCells, int teams) {
+
+		this.step = step;
+		this.width = width;
+		this.height = height;
+		this.tiles = tiles;
+		this.blocks = blocks;
+		this.bodies = bodies;
+		this.bodyCells = bodyCells;
+		this.offsetsX = offsetsX;
+		this.offsetsY = offsetsY;
+		this.bodyTypes = bodyTypes;
+		this.bodyTeams = bodyTeams;
+		this.changedCells = changedCells;
+
+		bodyTiles = new int[bodies.length];
+		bodyColors = new Color[bodies.length];
+		agentIds = new int[bodies.length];
+
+		for (int b = 0; b < bodies.length; b++) {
+			Body body = bodies[b];
+
+			if (body == null)
+				continue;
+
+			bodyTiles[b] = body.getTile();
+
+			if (body instanceof Team.TeamBody)
+				bodyColors[b] = ((Team.TeamBody) body).getTeam().getColor();
+
+			if (body instanceof Agent)
+				agentIds[b] = ((Agent) body).getId();
+		}
+
+		// an agent that picks up or drops flags changes its tile without moving
+		if (previous != null) {
+			int[] extra = new int[bodies.length];
+			int count = 0;
+
+			for (int b = 0; b < bodies.length && b < previous.bodies.length; b++) {
+				if (bodies[b] != null && previous.bodies[b] == bodies[b]
+						&& previous.bodyTiles[b] != bodyTiles[b])
+					extra[count++] = bodyCells[b];
+			}
+
+			if (count > 0) {
+				this.changedCells = Arrays.copyOf(changedCells, changedCells.length + count);
+				System.arraycopy(extra, 0, this.changedCells, changedCells.length, count);
+			}
+		}
+
+		changes = new Changes(this.changedCells, previous == null ? null : previous.changes);
+
+		Changes last = changes;
+
+		for (int i = 1; i < CHANGES_HISTORY && last != null; i++)
+			last = last.previous;
+
+		if (last != null)
+			last.previous = null;
+
+		codes = new int[teams][][];
+
+		for (int t = 0; t < teams; t++) {
+			if (previous != null && t < previous.codes.length)
+				codes[t] = updateCodes(previous.codes[t], t);
+			else
+				codes[t] = buildCodes(t);
+		}
+
+	}
+
+	private int[][] buildCodes(int team) {
+
+		int[][] result = new int[blocks.length][];
+
+		for (int i = 0; i < blocks.length; i++) {
+			int[] block = blocks[i];
+			result[i] = new int[block.length];
+			for (int j = 0; j < block.length; j++)
+				result[i][j] = code(block[j], team);
+		}
+
+		return result;
+
+	}
+
+	/**
+	 * Copies the codes of the previous snapshot, only the blocks with changed
+	 * cells are copied.
+	 */
+	private int[][] updateCodes(int[][] previous, int team) {
+
+		int[][] result = previous.clone();
+		boolean[] copied = new boolean[result.length];
+
+		for (int cell : changedCells) {
+			int block = cell >> BLOCK_SHIFT;
+
+			if (!copied[block]) {
+				result[block] = result[block].clone();
+				copied[block] = true;
+			}
+
+			int offset = cell & (BLOCK_SIZE - 1);
+			result[block][offset] = code(blocks[block][offset], team);
+		}
+
+		return result;
+
+	}
+
+	private int code(int b, int team) {
+
+		if (b == Field.EMPTY)
+			return Neighborhood.EMPTY;
+
+		if (b < Field.EMPTY)
+			return Neighborhood.WALL;
+
+		switch (bodyTypes[b]) {
+		case Field.TYPE_NONE:
+			return Neighborhood.EMPTY;
+		case Field.TYPE_HEADQUARTERS:
+			return bodyTeams[b] == team ? Neighborhood.HEADQUARTERS : Neighborhood.OTHER_HEADQUARTERS;
+		case Field.TYPE_FLAG:
+			return bodyTeams[b] == team ? Neighborhood.FLAG : Neighborhood.OTHER_FLAG;
+		case Field.TYPE_AGENT:
+			return bodyTeams[b] == team ? agentIds[b] : Neighborhood.OTHER;
+		default:
+			return Neighborhood.WALL;
+		}
+
+	}
+
+	/**
+	 * Returns the neighborhood of the given cell as seen by the given team.
+	 * Cells outside of the field are walls.
+	 *
+	 * @param team the index of the team
+	 * @param x the x of the center
+	 * @param y the y of the center
+	 * @param size the size of the neighborhood
+	 * @return the neighborhood
+	 */
+	public Neighborhood scan(int team, int x, int y, int size) {
+
+		int span = size * 2 + 1;
+		int[] grid = new int[span * span];
+		int[][] teamCodes = codes[team];
+
+		for (int j = 0; j < span; j++) {
+
+			int row = j * span, cy = y - size + j;
+			int x0 = x - size, from = Math.max(0, x0), to = Math.min(width, x + size + 1);
+
+			if (cy < 0 || cy >= height || from >= to) {
+				Arrays.fill(grid, row, row + span, Neighborhood.WALL);
+				continue;
+			}
+
+			Arrays.fill(grid, row, row + from - x0, Neighborhood.WALL);
+			Arrays.fill(grid, row + to - x0, row + span, Neighborhood.WALL);
+
+			int cell = cy * width + from, position = row + from - x0, length = to - from;
+
+			while (length > 0) {
+				int[] block = teamCodes[cell >> BLOCK_SHIFT];
+				int offset = cell & (BLOCK_SIZE - 1);
+				int count = Math.min(length, block.length - offset);
+
+				System.arraycopy(block, offset, grid, position, count);
+
+				cell += count;
+				position += count;
+				length -= count;
+			}
+		}
+
+		Neighborhood n = new Neighborhood(size, grid);
+		n.setOrigin(x, y);
+
+		return n;
+
+	}
+
+	int[][] getBlocks() {
+		return blocks;
+	}
+
+	/**
+	 * Returns the step at which the snapshot was taken.
+	 */
+	public int getStep() {
+		return step;
+	}
+
+	/**
+	 * Returns the cells (as <code>y * width + x</code>) whose occupant, body
+	 * offset or body tile changed since the previous snapshot. A cell can be
+	 * listed more than once.
+	 */
+	public int[] getChangedCells() {
+		return changedCells;
+	}
+
+	@Override
+	public int[] getChangedCells(Arena since) {
+
+		if (since == this)
+			return new int[0];
+
+		if (!(since instanceof FieldSnapshot))
+			return null;
+
+		Changes until = ((FieldSnapshot) since).changes;
+		ArrayList<int[]> found = new ArrayList<int[]>();
+		int length = 0;
+
+		// the links are cut by the publishing thread, so they are read only once
+		for (Changes c = changes; c != until; c = c.previous) {
+			if (c == null)
+				return null;
+
+			found.add(c.cells);
+			length += c.cells.length;
+		}
+
+		int[] result = new int[length];
+
+		for (int[] cells : found) {
+			length -= cells.length;
+			System.arraycopy(cells, 0, result, length, cells.length);
+		}
+
+		return result;
+
+	}
+
+	@Override
+	public int getWidth() {
+		return width;
+	}
+
+	@Override
+	public int getHeight() {
+		return height;
+	}
+
+	public boolean contains(int x, int y) {
+
+		return x >= 0 && x < width && y >= 0 && y < height;
+
+	}
+
+	private int occupant(int x, int y) {
+
+		int cell = y * width + x;
+
+		return blocks[cell >> BLOCK_SHIFT][cell & (BLOCK_SIZE - 1)];
+
+	}
+
+	/**
+	 * Returns the type of the body in the given cell (one of the TYPE constants
+	 * of {@link Field}). Cells outside of the field are walls.
+	 */
+	public byte getBodyType(int x, int y) {
+
+		if (!contains(x, y))
+			return Field.TYPE_WALL;
+
+		int b = occupant(x, y);
+
+		if (b == Field.EMPTY)
+			return Field.TYPE_NONE;
+
+		if (b < Field.EMPTY)
+			return Field.TYPE_WALL;
+
+		return bodyTypes[b];
+
+	}
+
+	/**
+	 * Returns the index of the team of the body in the given cell or -1 if the
+	 * cell does not contain a team body.
+	 */
+	public int getBodyTeam(int x, int y) {
+
+		if (!contains(x, y))
+			return -1;
+
+		int b = occupant(x, y);
+
+		return b >= 0 ? bodyTeams[b] : -1;
+
+	}
+
+	/**
+	 * Returns the id of the agent in the given cell or 0 if there is no agent.
+	 */
+	public int getAgentId(int x, int y) {
+
+		if (!contains(x, y))
+			return 0;
+
+		int b = occupant(x, y);
+
+		return b >= 0 ? agentIds[b] : 0;
+
+	}
+
+	/**
+	 * Returns the body in the given cell. Walls are returned as null.
+	 */
+	public Body getBody(int x, int y) {
+
+		if (!contains(x, y))
+			return null;
+
+		int b = occupant(x, y);
+
+		return b >= 0 ? bodies[b] : null;
+
+	}
+
+	/**
+	 * Returns the position of the body at the time of the snapshot.
+	 *
+	 * @return the position or null if the body was not in the field
+	 */
+	public BodyPosition getPosition(Body body) {
+
+		int b = body.getIndex();
+
+		if (b < 0 || b >= bodies.length || bodies[b] != body)
+			return null;
+
+		int c = bodyCells[b];
+
+		return new BodyPosition(c % width, c / width, offsetsX[b], offsetsY[b]);
+
+	}
+
+	@Override
+	public int getBaseTile(int x, int y) {
+
+		if (contains(x, y))
+			return tiles[y * width + x];
+
+		return 0;
+
+	}
+
+	@Override
+	public int getBodyTile(int x, int y) {
+
+		if (!contains(x, y))
+			return 0;
+
+		int b = occupant(x, y);
+
+		if (b == Field.EMPTY)
+			return 0;
+
+		if (b < Field.EMPTY)
+			return Arena.TILE_WALL_0 + Field.WALL - b;
+
+		return bodyTiles[b];
+
+	}
+
+	@Override
+	public float getBodyOffsetX(int x, int y) {
+
+		if (!contains(x, y))
+			return 0;
+
+		int b = occupant(x, y);
+
+		return b >= 0 ? offsetsX[b] : 0;
+
+	}
+
+	@Override
+	public float getBodyOffsetY(int x, int y) {
+
+		if (!contains(x, y))
+			return 0;
+
+		int b = occupant(x, y);
+
+		return b >= 0 ? offsetsY[b] : 0;
+
+	}
+
+	@Override
+	public Color getBodyColor(int x, int y) {
+
+		if (!contains(x, y))
+			return null;
+
+		int b = occupant(x, y);
+
+		return b >= 0 ? bodyColors[b] : null;
+
+	}
+
+}
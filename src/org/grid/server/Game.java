@@ -23,23 +23,23 @@ import java.io.FileReader;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Properties;
 import java.util.Vector;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 import org.grid.protocol.Neighborhood;
 import org.grid.protocol.NewMessage.Direction;
 import org.grid.server.Dispatcher.Client;
 import org.grid.server.Field.BodyPosition;
 import org.grid.server.Field.Cell;
-import org.grid.server.Field.Wall;
 import org.grid.server.Team.Flag;
-import org.grid.server.Team.Headquarters;
-import org.grid.server.Team.TeamBody;
 
 
 public class Game {
@@ -56,27 +56,48 @@ public class Game {
 
 	public static class MessageContainter {
 		
-		private int to;
+		private Team team;
+		
+		private int from;
+		
+		private int[] to;
 		
 		private byte[] message;
 
-		private int delay;
+		private int step;
 		
 		/**
-		 * Instantiates a new message container.
+		 * Instantiates a new message container. The message is shared by all
+		 * receivers.
 		 *
-		 * @param to the receiver
+		 * @param team the team of the agents
+		 * @param from the sender
+		 * @param to the receivers
 		 * @param message the message
-		 * @param delay the delay
+		 * @param step the step in which the message is delivered
 		 */
-		public MessageContainter(int to, byte[] message, int delay) {
+		public MessageContainter(Team team, int from, int[] to, byte[] message, int step) {
 			super();
+			this.team = team;
+			this.from = from;
 			this.to = to;
 			this.message = message;
-			this.delay = delay;
+			this.step = step;
+		}
+
+		public Team getTeam() {
+			return team;
+		}
+
+		public int getFrom() {
+			return from;
 		}
 
 		public int getTo() {
+			return to[0];
+		}
+
+		public int[] getRecipients() {
 			return to;
 		}
 
@@ -84,13 +105,8 @@ public class Game {
 			return message;
 		}
 
-		/**
-		 * Decrease delay.
-		 *
-		 * @return the int
-		 */
-		public int decreaseDelay() {
-			return delay--;
+		public int getStep() {
+			return step;
 		}
 		
 	}
@@ -105,8 +121,16 @@ public class Game {
 
 	private Field field;
 
+	// the state of the field at the end of the last step, read by scans and views
+	private volatile FieldSnapshot snapshot;
+
 	private HashMap<String, Team> teams = new HashMap<String, Team>();
 
+	// the teams in the order of their indices
+	private Vector<Team> order = new Vector<Team>();
+
+	private Movement movement;
+
 	private int maxAgentsPerTeam = 10;
 
 	private int neighborhoodSize = 10;
@@ -114,6 +138,11 @@ public class Game {
 	private float flagWeight = 0;
 	
 	private int messageSpeed = 10;
+
+	private boolean messageBudget = false;
+
+	// messages waiting for delivery, keyed by the step in which they are due
+	private MessageWheel messages = new MessageWheel();
 	
 	private Properties properties = null;
 
@@ -121,6 +150,9 @@ public class Game {
 
 	private Vector<GameListener> listeners = new Vector<GameListener>();
 
+	// commands received from the clients, applied at the start of each step
+	private ConcurrentLinkedQueue<Runnable> commands = new ConcurrentLinkedQueue<Runnable>();
+
 	private static final Color[] colors = new Color[] { Color.red, Color.blue,
 			Color.green, Color.yellow, Color.pink, Color.orange, Color.black,
 			Color.white };
@@ -137,11 +169,13 @@ public class Game {
 		if (a1 == null || a2 == null)
 			return -1;
 
-		BodyPosition bp1 = field.getPosition(a1);
-		BodyPosition bp2 = field.getPosition(a2);
+		int x1 = field.getBodyX(a1), y1 = field.getBodyY(a1);
+		int x2 = field.getBodyX(a2), y2 = field.getBodyY(a2);
 
-		return Math.max(Math.abs(bp1.getX() - bp2.getX()), Math.abs(bp1.getY()
-				- bp2.getY()));
+		if (x1 < 0 || x2 < 0)
+			return -1;
+
+		return Math.max(Math.abs(x1 - x2), Math.abs(y1 - y2));
 	}
 
 	/**
@@ -227,14 +261,19 @@ public class Game {
 			if (id == null)
 				break;
 
+			Team team;
+
 			if (database == null) {
-				game.teams.put(id, new Team(id, colors[index - 1], game.flagMode));
+				team = new Team(id, colors[index - 1], game.flagMode);
 			} else {
-				Team team = database.createTeam(id, game.flagMode);
+				team = database.createTeam(id, game.flagMode);
 				if (team == null) break;
-				game.teams.put(id, team);
 			}
 
+			team.setIndex(index - 1);
+			game.teams.put(id, team);
+			game.order.add(team);
+
 			Main.log("Registered team: " + id);
 
 		}
@@ -254,7 +293,9 @@ public class Game {
 
 		game.neighborhoodSize = game.getProperty("message.neighborhood", 5);
 
-		game.messageSpeed = game.getProperty("message.speed", 10);
+		game.messageSpeed = Math.max(1, game.getProperty("message.speed", 10));
+
+		game.messageBudget = game.getProperty("message.budget", false);
 		
 		if (game.flagMode == FlagMode.RESPAWN) {
 
@@ -282,10 +323,14 @@ public class Game {
 		
 		game.field = Field.loadFromFile(fldFile, game);
 
+		game.movement = new Movement(game.getProperty("server.workers", Runtime.getRuntime().availableProcessors()));
+
 		if (game.flagMode != FlagMode.UNIQUE) {
 			game.spawnNewFlags();
 		}
 		
+		game.snapshot = game.field.publish(0, game.teams.size());
+		
 		return game;
 
 	}
@@ -296,6 +341,18 @@ public class Game {
 
 	}
 
+	/**
+	 * Returns the state of the field at the end of the last step. The snapshot
+	 * is immutable and can be read without locking.
+	 *
+	 * @return the snapshot
+	 */
+	public FieldSnapshot getSnapshot() {
+
+		return snapshot;
+
+	}
+
 	private int spawnCounter = 1;
 
 	private int flagSpawnCounter = 1;
@@ -306,36 +363,49 @@ public class Game {
 	 * One step in the game.
 	 * This is called from a thread that is created in Main.
 	 * 
+	 * Applies the move and message commands received from clients.
 	 * Moves all agents that are alive.
-	 * Sends all gameListeners position of each "moving" agent.
 	 * Dispatch messages to other agents.
 	 * Spawn new agents and flags.
+	 * Publishes the snapshot of the field.
+	 * Sends all gameListeners position of each "moving" agent.
+	 * Send the state to clients whose agents finished moving.
 	 * 
 	 */
 	public synchronized void step(PrintWriter log) {
 
 		step++;
 
+		// apply the commands received since the previous step
+		while (true) {
+			Runnable command = commands.poll();
+
+			if (command == null)
+				break;
+
+			// a failing command must not stop the game or drop the other commands
+			try {
+				command.run();
+			} catch (RuntimeException e) {
+				Main.log("Unable to apply a command in step %d: %s", step, e.toString());
+			}
+		}
+
 		fireStepEvent();
 		
+		// teams in the order of their indices, agents in the order of their ids
+		Vector<Agent> agents = new Vector<Agent>();
+
+		for (Team t : order) {
+			agents.addAll(t.listAgents());
+		}
+
 		// handle moves and collisions
-		for (Team t : teams.values()) {
-			for (Agent a : t.move(field)) {
-				
-				synchronized (listeners) {
-					for (GameListener l : listeners) {
-						try {
-							l.position(t, a.getId(), field.getPosition(a));
-						} catch (Exception e) {
-							e.printStackTrace();
-						}
+		List<Agent> moved = movement.move(field, agents);
 
-					}
-				}
-				
-			}
-			
-			t.dispatch();
+		// deliver the messages that are due
+		for (MessageContainter m : messages.advance(step)) {
+			m.getTeam().deliver(m);
 		}
 
 		// spawn new agents
@@ -359,6 +429,29 @@ public class Game {
 			t.cleanup(field);
 		}
 
+		FieldSnapshot current = field.publish(step, teams.size());
+		snapshot = current;
+
+		synchronized (listeners) {
+			for (Agent a : moved) {
+				// null if the agent has died in this step, the listeners end its trail
+				BodyPosition p = current.getPosition(a);
+				
+				for (GameListener l : listeners) {
+					try {
+						l.position(a.getTeam(), a.getId(), p);
+					} catch (Exception e) {
+						e.printStackTrace();
+					}
+				}
+			}
+		}
+
+		// notify clients whose agents have finished moving
+		for (Team t : teams.values()) {
+			t.completeMoves();
+		}
+
 		// check end conditions?
 		// TODO
 	}
@@ -445,7 +538,7 @@ public class Game {
 		}
 		else
 		{
-			List<Cell> freeCells = field.listEmptyFields(true);
+			List<Cell> freeCells = field.sampleEmptyFields(add, true);
 	
 			if (freeCells.size() < add)
 				return;
@@ -460,7 +553,6 @@ public class Game {
 			}
 	
 			Collections.shuffle(flags);
-			Collections.shuffle(freeCells);
 	
 			for (int i = 0; i < flags.size(); i++) {
 				field.putBody(flags.get(i), new BodyPosition(freeCells.get(i)
@@ -471,71 +563,32 @@ public class Game {
 	}
 
 	/**
-	 * Scan neighborhood.
+	 * Scan neighborhood. The scan reads the snapshot of the last step, so it can
+	 * be called from any thread.
 	 *
 	 * @param size the size of scanned area
 	 * @param agent the agent for which we perform scan
-	 * @return the neighborhood
+	 * @return the neighborhood or null if the agent was not in the field at the
+	 * end of the last step
 	 */
 	public Neighborhood scanNeighborhood(int size, Agent agent) {
 
-		Neighborhood n = new Neighborhood(size);
+		FieldSnapshot field = snapshot;
+
+		// the agent has not moved since its last scan
+		Neighborhood n = agent.getScan(field, size);
+
+		if (n != null)
+			return n;
 
 		BodyPosition bp = field.getPosition(agent);
 
 		if (bp == null)
 			return null;
 
-		for (int j = -size; j <= size; j++) {
-			for (int i = -size; i <= size; i++) {
+		n = field.scan(agent.getTeam().getIndex(), bp.getX(), bp.getY(), size);
 
-				Cell c = field.getCell(bp.getX() + i, bp.getY() + j);
-
-				if (c == null) {
-					n.setCell(i, j, Neighborhood.WALL);
-					continue;
-				}
-
-				if (c.isEmpty()) {
-					n.setCell(i, j, Neighborhood.EMPTY);
-					continue;
-				}
-
-				if (c.getBody() instanceof Wall) {
-					n.setCell(i, j, Neighborhood.WALL);
-					continue;
-				}
-
-				if (c.getBody() instanceof TeamBody) {
-
-					Team t = ((TeamBody) c.getBody()).getTeam();
-
-					if (c.getBody() instanceof Headquarters) {
-						n
-								.setCell(
-										i,
-										j,
-										t == agent.getTeam() ? Neighborhood.HEADQUARTERS
-												: Neighborhood.OTHER_HEADQUARTERS);
-						continue;
-					}
-
-					if (c.getBody() instanceof Flag) {
-						n.setCell(i, j,
-								t == agent.getTeam() ? Neighborhood.FLAG
-										: Neighborhood.OTHER_FLAG);
-						continue;
-					}
-
-					if (c.getBody() instanceof Agent) {
-
-						n.setCell(i, j, t == agent.getTeam() ? ((Agent) c
-								.getBody()).getId() : Neighborhood.OTHER);
-						continue;
-					}
-				}
-			}
-		}
+		agent.setScan(field, n);
 
 		return n;
 
@@ -645,14 +698,27 @@ public class Game {
 	}
 
 	/**
-	 * Message.
+	 * Message. The message is queued and processed at the start of the next
+	 * step, so the caller never waits for a step to finish.
 	 *
 	 * @param team the team
 	 * @param from the sending agent
 	 * @param to the receiving agent
 	 * @param message the message
 	 */
-	public synchronized void message(Team team, int from, int to, byte[] message) {
+	public void message(final Team team, final int from, final int to, final byte[] message) {
+		
+		commands.add(new Runnable() {
+			
+			@Override
+			public void run() {
+				applyMessage(team, from, to, message);
+			}
+		});
+		
+	}
+
+	private void applyMessage(Team team, int from, int to, byte[] message) {
 		Client cltto = team.findById(to);
 		Client cltfrom = team.findById(from);
 
@@ -675,7 +741,7 @@ public class Game {
 				}
 			}
 			
-			cltfrom.getAgent().pushMessage(to, message, flagMode == FlagMode.BENCHMARK ? 1 : message.length / messageSpeed);
+			schedule(team, cltfrom.getAgent(), new int[] {to}, message);
 
 		} else
 			return;
@@ -692,6 +758,111 @@ public class Game {
 		}
 	}
 
+	/**
+	 * Multicast message. The message is sent to all given agents of the team
+	 * that are in range, or to all agents of the team in range if no receivers
+	 * are given. The message is queued only once and shared by all receivers.
+	 *
+	 * @param team the team
+	 * @param from the sending agent
+	 * @param to the receiving agents
+	 * @param message the message
+	 */
+	public void multicast(final Team team, final int from, final int[] to, final byte[] message) {
+		
+		commands.add(new Runnable() {
+			
+			@Override
+			public void run() {
+				applyMulticast(team, from, to, message);
+			}
+		});
+		
+	}
+
+	private void applyMulticast(Team team, int from, int[] to, byte[] message) {
+		Client cltfrom = team.findById(from);
+
+		if (cltfrom == null)
+			return;
+
+		// repeated recipients get the message once, in the order of the request
+		Collection<Client> candidates = new LinkedHashSet<Client>();
+
+		if (to.length == 0) {
+			candidates.addAll(team.getUsedClients());
+		} else {
+			for (int id : to) {
+				Client c = team.findById(id);
+				if (c != null)
+					candidates.add(c);
+			}
+		}
+
+		int[] recipients = new int[candidates.size()];
+		int count = 0;
+
+		for (Client cltto : candidates) {
+
+			if (cltto == cltfrom || cltto.getAgent() == null)
+				continue;
+
+			if(flagMode != FlagMode.BENCHMARK)
+			{
+				int dst = distance(cltfrom.getAgent(), cltto.getAgent());
+				if (dst > neighborhoodSize || dst < 0) {
+					if (to.length > 0)
+						Main.log(
+							"Message from %d to %d rejected: too far away", from,
+							cltto.getAgent().getId());
+					continue;
+				}
+			}
+
+			recipients[count++] = cltto.getAgent().getId();
+		}
+
+		if (count == 0)
+			return;
+
+		recipients = Arrays.copyOf(recipients, count);
+
+		schedule(team, cltfrom.getAgent(), recipients, message);
+
+		synchronized (listeners) {
+			for (GameListener l : listeners) {
+				for (int id : recipients) {
+					try {
+						l.message(team, from, id, message.length);
+					} catch (Exception e) {
+						e.printStackTrace();
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Puts the message into the delivery wheel. A message takes one step for
+	 * every <code>message.speed</code> bytes. If <code>message.budget</code> is
+	 * enabled, the messages of an agent are transmitted one after another, so
+	 * an agent can not send more than <code>message.speed</code> bytes per step.
+	 */
+	private void schedule(Team team, Agent from, int[] to, byte[] message) {
+
+		int due;
+
+		if (flagMode == FlagMode.BENCHMARK)
+			due = step + 1;
+		else if (messageBudget)
+			due = (int) (from.transmit((long) step * messageSpeed, message.length) / messageSpeed);
+		else
+			due = step + message.length / messageSpeed;
+
+		messages.schedule(new MessageContainter(team, from.getId(), to, message, due));
+
+	}
+
 	/**
 	 * Fire step event.
 	 */
@@ -711,18 +882,31 @@ public class Game {
 	}
 	
 	/**
-	 * Move.
+	 * Move. The command is queued and applied at the start of the next step.
 	 *
 	 * @param team the team
 	 * @param agent the agent
 	 * @param direction the direction
 	 */
-	public synchronized void move(Team team, int agent, Direction direction) {
+	public void move(final Team team, final int agent, final Direction direction) {
+		
+		commands.add(new Runnable() {
+			
+			@Override
+			public void run() {
+				applyMove(team, agent, direction);
+			}
+		});
+		
+	}
+
+	private void applyMove(Team team, int agent, Direction direction) {
 
 		Client clt = team.findById(agent);
 
 		if (clt != null && clt.getAgent() != null) {
 			clt.getAgent().setDirection(direction);
+			clt.awaitMove(direction);
 		}
 
 	}
@@ -18,15 +18,28 @@
 package org.grid.server;
 
 import java.awt.Color;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Hashtable;
-import java.util.Vector;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.NoSuchElementException;
 
 import org.grid.server.Field.BodyPosition;
 
 
 /**
- * The Class History.
+ * The Class History. The positions are stored in columns of primitive arrays
+ * that are split into chunks of fixed size. If a memory limit is set, the
+ * oldest full chunks are moved to a temporary file once the limit is exceeded.
+ * Trails of dead agents are kept.
  */
 public class History implements Serializable, GameListener {
 
@@ -43,25 +56,230 @@ public class History implements Serializable, GameListener {
 			this.step = step;
 		}
 
+		public HistoryPosition(int x, int y, float offsetX, float offsetY, int step) {
+			super(x, y, offsetX, offsetY);
+			this.step = step;
+		}
+
 		public int getStep() {
 			return step;
 		}
 		
 	}
 	
+	// the number of positions in a chunk
+	private static final int CHUNK_SIZE = 1024;
+	
+	// the capacity of a new chunk, doubled until it reaches the chunk size
+	private static final int INITIAL_CAPACITY = 16;
+	
+	// the size of a position in memory and in the spill file
+	private static final int POSITION_BYTES = 20;
+	
+	/**
+	 * The columns of a chunk of positions.
+	 */
+	private static class Columns implements Serializable {
+		
+		private static final long serialVersionUID = 1L;
+
+		private int[] steps;
+		
+		private int[] xs;
+		
+		private int[] ys;
+		
+		private float[] offsetsX;
+		
+		private float[] offsetsY;
+		
+		public Columns(int capacity) {
+			steps = new int[capacity];
+			xs = new int[capacity];
+			ys = new int[capacity];
+			offsetsX = new float[capacity];
+			offsetsY = new float[capacity];
+		}
+		
+		public Columns(Columns columns, int capacity) {
+			steps = Arrays.copyOf(columns.steps, capacity);
+			xs = Arrays.copyOf(columns.xs, capacity);
+			ys = Arrays.copyOf(columns.ys, capacity);
+			offsetsX = Arrays.copyOf(columns.offsetsX, capacity);
+			offsetsY = Arrays.copyOf(columns.offsetsY, capacity);
+		}
+		
+		public int capacity() {
+			return steps.length;
+		}
+		
+		public HistoryPosition get(int i) {
+			return new HistoryPosition(xs[i], ys[i], offsetsX[i], offsetsY[i], steps[i]);
+		}
+		
+	}
+	
+	protected class Chunk implements Serializable {
+		
+		private static final long serialVersionUID = 1L;
+
+		private Columns columns = null;
+		
+		private int size = 0;
+		
+		// the position of the chunk in the spill file or -1 if it is in memory
+		private transient long spilled = -1;
+		
+		public boolean isFull() {
+			return size == CHUNK_SIZE;
+		}
+		
+		/**
+		 * Returns the number of positions the columns of the chunk can hold
+		 * while they are in memory.
+		 */
+		public int capacity() {
+			return spilled < 0 && columns != null ? columns.capacity() : 0;
+		}
+		
+		/**
+		 * Adds a position to the chunk, the columns grow as needed.
+		 *
+		 * @return the increase of the capacity of the chunk
+		 */
+		public int add(BodyPosition p, int step) {
+			
+			int allocated = 0;
+			
+			if (columns == null) {
+				columns = new Columns(INITIAL_CAPACITY);
+				allocated = INITIAL_CAPACITY;
+			} else if (size == columns.capacity()) {
+				int capacity = Math.min(CHUNK_SIZE, size * 2);
+				columns = new Columns(columns, capacity);
+				allocated = capacity - size;
+			}
+			
+			columns.steps[size] = step;
+			columns.xs[size] = p.getX();
+			columns.ys[size] = p.getY();
+			columns.offsetsX[size] = p.getOffsetX();
+			columns.offsetsY[size] = p.getOffsetY();
+			size++;
+			
+			return allocated;
+		}
+		
+		/**
+		 * Returns the columns of the chunk, a chunk that was moved to the
+		 * spill file is read into new columns. Called with the history locked.
+		 */
+		private Columns read() throws IOException {
+			
+			if (spilled < 0)
+				return columns;
+			
+			byte[] data = new byte[size * POSITION_BYTES];
+			
+			spill.seek(spilled);
+			spill.readFully(data);
+			
+			ByteBuffer buffer = ByteBuffer.wrap(data);
+			Columns c = new Columns(size);
+			
+			for (int i = 0; i < size; i++) {
+				c.steps[i] = buffer.getInt();
+				c.xs[i] = buffer.getInt();
+				c.ys[i] = buffer.getInt();
+				c.offsetsX[i] = buffer.getFloat();
+				c.offsetsY[i] = buffer.getFloat();
+			}
+			
+			return c;
+		}
+		
+		/**
+		 * Moves the chunk to the end of the spill file.
+		 */
+		private void write() throws IOException {
+			
+			ByteBuffer buffer = ByteBuffer.allocate(size * POSITION_BYTES);
+			
+			for (int i = 0; i < size; i++) {
+				buffer.putInt(columns.steps[i]);
+				buffer.putInt(columns.xs[i]);
+				buffer.putInt(columns.ys[i]);
+				buffer.putFloat(columns.offsetsX[i]);
+				buffer.putFloat(columns.offsetsY[i]);
+			}
+			
+			spilled = spill.length();
+			spill.seek(spilled);
+			spill.write(buffer.array());
+			
+			columns = null;
+		}
+		
+		private void writeObject(ObjectOutputStream out) throws IOException {
+			
+			synchronized (History.this) {
+				
+				// a spilled chunk is written with the columns read from the
+				// spill file and stays in the file
+				columns = read();
+				
+				out.defaultWriteObject();
+				
+				if (spilled >= 0)
+					columns = null;
+			}
+		}
+		
+		private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+			
+			in.defaultReadObject();
+			
+			spilled = -1;
+		}
+		
+	}
+	
 	protected class AgentHistory implements Serializable {
 
 		private static final long serialVersionUID = 1L;
 		
-		private Vector<HistoryPosition> history = new Vector<HistoryPosition>();
+		private ArrayList<Chunk> chunks = new ArrayList<Chunk>();
+		
+		private int size = 0;
+		
+		private int lastX, lastY;
 		
 		private transient BodyPosition preprevious, previous;
 		
+		private void add(BodyPosition p, int step) {
+			
+			Chunk chunk = chunks.isEmpty() ? null : chunks.get(chunks.size() - 1);
+			
+			if (chunk == null || chunk.isFull()) {
+				chunk = new Chunk();
+				chunks.add(chunk);
+			}
+			
+			int allocated = chunk.add(p, step);
+			
+			lastX = p.getX();
+			lastY = p.getY();
+			size++;
+			
+			positionAdded(chunk, allocated);
+		}
+		
 		public void record(BodyPosition p) {
 			
 			if (p == null) {
 				
-				history.add(new HistoryPosition(previous, step-1));
+				if (previous != null)
+					add(previous, step-1);
 				
 				return;
 				
@@ -71,7 +289,7 @@ public class History implements Serializable, GameListener {
 				
 				previous = new BodyPosition(p);
 				
-				history.add(new HistoryPosition(p, step));
+				add(p, step);
 				
 				return;
 			}
@@ -94,14 +312,14 @@ public class History implements Serializable, GameListener {
 			if (Math.abs(pX - (float)previous.getX() - previous.getOffsetX()) > 0.00001f ||
 				Math.abs(pY - (float)previous.getY() - previous.getOffsetY()) > 0.00001f) {
 			
-				history.add(new HistoryPosition(previous, step-1));
+				add(previous, step-1);
 				
 			} else {
 				
-				if (!p.hasOffset() && !history.isEmpty()) {
+				if (!p.hasOffset() && size > 0) {
 					
-					if (!history.lastElement().equals(p))
-						history.add(new HistoryPosition(p, step));
+					if (lastX != p.getX() || lastY != p.getY())
+						add(p, step);
 					
 				}
 				
@@ -113,6 +331,74 @@ public class History implements Serializable, GameListener {
 			
 		}
 		
+		/**
+		 * Returns the positions recorded so far. Positions that are recorded
+		 * later are not included.
+		 */
+		public Iterable<HistoryPosition> positions() {
+			
+			final Chunk[] captured = chunks.toArray(new Chunk[chunks.size()]);
+			final int count = size;
+			
+			return new Iterable<HistoryPosition>() {
+				
+				@Override
+				public Iterator<HistoryPosition> iterator() {
+					return new PositionIterator(captured, count);
+				}
+			};
+			
+		}
+		
+	}
+	
+	private class PositionIterator implements Iterator<HistoryPosition> {
+		
+		private Chunk[] chunks;
+		
+		private int remaining, chunk = -1, position = 0;
+		
+		private Columns columns = null;
+		
+		public PositionIterator(Chunk[] chunks, int count) {
+			this.chunks = chunks;
+			this.remaining = count;
+		}
+
+		@Override
+		public boolean hasNext() {
+			return remaining > 0;
+		}
+
+		@Override
+		public HistoryPosition next() {
+			
+			if (remaining == 0)
+				throw new NoSuchElementException();
+			
+			if (columns == null || position == CHUNK_SIZE) {
+				chunk++;
+				position = 0;
+				
+				synchronized (History.this) {
+					try {
+						columns = chunks[chunk].read();
+					} catch (IOException e) {
+						throw new IllegalStateException("Unable to read the history", e);
+					}
+				}
+			}
+			
+			remaining--;
+			
+			return columns.get(position++);
+		}
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+		
 	}
 	
 	protected class TeamHistory implements Serializable {
@@ -141,11 +427,6 @@ public class History implements Serializable, GameListener {
 			
 			h.record(p);
 			
-			// At the moment we do not need to know the location of dead agents.
-			if (p == null) {
-				agents.remove(id);
-			}
-			
 		}
 		
 		public String getTeamName() {
@@ -162,18 +443,102 @@ public class History implements Serializable, GameListener {
 	
 	private transient int step = 0;
 	
+	// the maximum number of positions kept in memory, 0 for no limit
+	private int memoryLimit = 0;
+	
+	// the capacity of the chunks that are in memory
+	private transient int inMemory = 0;
+	
+	// full chunks that are still in memory, the oldest first
+	private transient LinkedList<Chunk> resident = new LinkedList<Chunk>();
+	
+	private transient RandomAccessFile spill = null;
+	
 	public void step() {
 		step++;
 	}
 	
-	public int calculateSize() {
+	/**
+	 * Sets the maximum amount of memory used for the positions. When the limit
+	 * is exceeded, the oldest chunks of positions are moved to a temporary file.
+	 *
+	 * @param bytes the limit in bytes or 0 for no limit
+	 */
+	public synchronized void setMemoryLimit(long bytes) {
+		
+		memoryLimit = (int) Math.min(Integer.MAX_VALUE, Math.max(0, bytes / POSITION_BYTES));
+		
+	}
+	
+	/**
+	 * Called for each recorded position. Full chunks become candidates for the
+	 * spill file. The memory is counted by the capacity of the chunks, so
+	 * many short trails are accounted for as well.
+	 *
+	 * @param chunk the chunk that received the position
+	 * @param allocated the increase of the capacity of the chunk
+	 */
+	private void positionAdded(Chunk chunk, int allocated) {
+		
+		inMemory += allocated;
+		
+		if (chunk.isFull())
+			resident.add(chunk);
+		
+		if (memoryLimit <= 0)
+			return;
+		
+		while (inMemory > memoryLimit && !resident.isEmpty()) {
+			
+			Chunk oldest = resident.poll();
+			
+			try {
+				if (spill == null) {
+					File file = File.createTempFile("history", ".bin");
+					file.deleteOnExit();
+					spill = new RandomAccessFile(file, "rw");
+				}
+				
+				inMemory -= oldest.capacity();
+				oldest.write();
+				
+			} catch (IOException e) {
+				Main.log("Unable to write history to disk: %s", e.toString());
+				memoryLimit = 0;
+				return;
+			}
+		}
+		
+	}
+	
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+		
+		in.defaultReadObject();
+		
+		// all chunks are in memory after reading
+		resident = new LinkedList<Chunk>();
+		inMemory = 0;
+		
+		for (TeamHistory th : teams.values()) {
+			for (AgentHistory ah : th.agents.values()) {
+				for (Chunk chunk : ah.chunks) {
+					inMemory += chunk.capacity();
+					if (chunk.isFull())
+						resident.add(chunk);
+				}
+			}
+		}
+		
+	}
+	
+	public synchronized int calculateSize() {
 		
 		int size = 0;
 		
 		for (TeamHistory th : teams.values()) {
 			
 			for (AgentHistory ah : th.agents.values()) 
-				size += ah.history.size();
+				size += ah.size;
 			
 			
 		}
@@ -182,7 +547,7 @@ public class History implements Serializable, GameListener {
 		
 	}
 	
-	public Iterable<HistoryPosition> getAgentHistory(Team team, int id) {
+	public synchronized Iterable<HistoryPosition> getAgentHistory(Team team, int id) {
 		
 		TeamHistory th = teams.get(team.getName());
 		
@@ -194,7 +559,7 @@ public class History implements Serializable, GameListener {
 		if (ah == null)
 			return null;
 		
-		return ah.history;
+		return ah.positions();
 		
 	}
 
@@ -204,7 +569,7 @@ public class History implements Serializable, GameListener {
 	}
 
 	@Override
-	public void position(Team team, int id, BodyPosition p) {
+	public synchronized void position(Team team, int id, BodyPosition p) {
 		TeamHistory h = teams.get(team.getName());
 		
 		if (h == null) {
@@ -34,7 +34,9 @@ import java.io.PrintWriter;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.Date;
+import java.util.Iterator;
 import java.util.LinkedList;
+import java.util.Vector;
 
 import javax.swing.AbstractAction;
 import javax.swing.Action;
@@ -45,6 +47,7 @@ import javax.swing.JLabel;
 import javax.swing.JPanel;
 import javax.swing.JScrollPane;
 import javax.swing.JSplitPane;
+import javax.swing.Timer;
 
 import org.grid.arena.Arena;
 import org.grid.arena.SwingView;
@@ -52,7 +55,6 @@ import org.grid.server.ClientsPanel.SelectionObserver;
 import org.grid.server.Dispatcher.Client;
 import org.grid.server.Field.Body;
 import org.grid.server.Field.BodyPosition;
-import org.grid.server.Field.Cell;
 import org.grid.server.Game.FlagMode;
 
 //java -cp bin org.grid.server.Main games/benchmark.game
@@ -79,11 +81,13 @@ public class Main {
 
 	private static boolean running = false;
 
-	private static GameSwingView view = new GameSwingView();
+	private static GameSwingView view = null;
+
+	private static VisitMaps visitMaps = null;
 
 	private static ClientsPanel clientsPanel = null;
 	
-	private static JLabel gameStepDisplay = new JLabel();
+	private static JLabel gameStepDisplay = null;
 	
 	private static PrintWriter log;
 	
@@ -116,10 +120,13 @@ public class Main {
 
 		private static final int BUFFER_LIFE = 10;
 
-		private LinkedList<Message> buffer = new LinkedList<Message>();
+		private final LinkedList<Message> buffer = new LinkedList<Message>();
 
 		private VisitMap visualization = null;
 
+		// the bounds of the message lines as of the last update
+		private Vector<Rectangle> overlays = new Vector<Rectangle>();
+
 		public class Message {
 
 			private int length, step;
@@ -148,6 +155,7 @@ public class Main {
 		 */
 		public GameSwingView() {
 			super(12);
+			setStaticBackground(true);
 			addMouseListener(this);
 		}
 
@@ -161,42 +169,37 @@ public class Main {
 
 			Arena view = getArena();
 
-			paintBackground(g, visualization == null ? view : visualization);
+			if (view == null)
+				return;
 
-			paintObjects(g, view);
+			// everything is painted from the same frame, the game may be several steps ahead
+			FieldSnapshot field = view instanceof FieldSnapshot ? (FieldSnapshot) view : game.getSnapshot();
 
-			LinkedList<Message> active = new LinkedList<Message>();
-			int current = game.getStep();
+			VisitMap visits = visualization;
 
-			synchronized (buffer) {
+			// the visits change with every step, so they are not cached
+			if (visits == null)
+				paintBackground(g, view);
+			else
+				paintBaseTiles(g, visits);
 
-				for (Message m : buffer) {
+			paintObjects(g, view);
 
-					if (current - m.step < BUFFER_LIFE)
-						active.add(m);
-				}
-			}
+			int current = field.getStep();
 
-			Field field = game.getField();
+			// the changed regions of a frame are painted one by one
+			Rectangle clip = g.getClipBounds();
 
 			g.setColor(Color.YELLOW);
 
-			for (Message m : active) {
+			for (Message m : getActiveMessages(current)) {
 
-				BodyPosition p1 = field.getPosition(m.sender);
-				BodyPosition p2 = field.getPosition(m.receiver);
+				int[] line = getLine(field, m);
 
-				if (p1 == null || p2 == null)
+				if (line == null || (clip != null && !clip.intersects(getBounds(line))))
 					continue;
 
-				int x1 = (int) ((p1.getX() + p1.getOffsetX()) * cellSize)
-						+ cellSize / 2;
-				int y1 = (int) ((p1.getY() + p1.getOffsetY()) * cellSize)
-						+ cellSize / 2;
-				int x2 = (int) ((p2.getX() + p2.getOffsetX()) * cellSize)
-						+ cellSize / 2;
-				int y2 = (int) ((p2.getY() + p2.getOffsetY()) * cellSize)
-						+ cellSize / 2;
+				int x1 = line[0], y1 = line[1], x2 = line[2], y2 = line[3];
 
 				g.drawLine(x1, y1, x2, y2);
 
@@ -228,21 +231,77 @@ public class Main {
 			}
 			
 			
-			synchronized (buffer) {
-				buffer = active;
-			}
-
 			long used = System.currentTimeMillis() - start;
 
+			// the frames are counted in update
 			synchronized (mutex) {
 
 				renderTime += used;
-				renderCount++;
 
 			}
 
 		}
 
+		/**
+		 * Returns the messages that are shown in the given step and removes the
+		 * expired ones from the buffer.
+		 */
+		private LinkedList<Message> getActiveMessages(int current) {
+
+			LinkedList<Message> active = new LinkedList<Message>();
+
+			synchronized (buffer) {
+
+				Iterator<Message> i = buffer.iterator();
+
+				while (i.hasNext()) {
+					Message m = i.next();
+
+					if (current - m.step >= BUFFER_LIFE)
+						i.remove();
+					else if (m.step <= current)
+						active.add(m);
+				}
+			}
+
+			return active;
+
+		}
+
+		/**
+		 * Returns the end points of the line of a message in pixels or null if
+		 * one of the agents is not in the field.
+		 */
+		private int[] getLine(FieldSnapshot field, Message m) {
+
+			BodyPosition p1 = field.getPosition(m.sender);
+			BodyPosition p2 = field.getPosition(m.receiver);
+
+			if (p1 == null || p2 == null)
+				return null;
+
+			return new int[] {
+					(int) ((p1.getX() + p1.getOffsetX()) * cellSize) + cellSize / 2,
+					(int) ((p1.getY() + p1.getOffsetY()) * cellSize) + cellSize / 2,
+					(int) ((p2.getX() + p2.getOffsetX()) * cellSize) + cellSize / 2,
+					(int) ((p2.getY() + p2.getOffsetY()) * cellSize) + cellSize / 2 };
+
+		}
+
+		/**
+		 * Returns the area covered by the line of a message and its marker.
+		 */
+		private Rectangle getBounds(int[] line) {
+
+			Rectangle bounds = new Rectangle(line[0], line[1], 0, 0);
+			bounds.add(line[2], line[3]);
+			// the marker of a message is up to 8 pixels wide
+			bounds.grow(5, 5);
+
+			return bounds;
+
+		}
+
 		/* (non-Javadoc)
 		 * @see org.grid.server.GameListener#message(org.grid.server.Team, int, int, int)
 		 */
@@ -261,6 +320,54 @@ public class Main {
 
 		}
 
+		/* (non-Javadoc)
+		 * @see org.grid.arena.SwingView#update(org.grid.arena.Arena)
+		 */
+		@Override
+		public void update(Arena view) {
+
+			if (view == null)
+				return;
+
+			synchronized (mutex) {
+				renderCount++;
+			}
+
+			VisitMap visits = visualization;
+
+			// the visits and the selection are not tracked by cells, so the
+			// whole view is repainted once
+			if (visits != null) {
+				setArena(view);
+				repaint();
+			} else {
+				super.update(view);
+			}
+
+			FieldSnapshot field = view instanceof FieldSnapshot ? (FieldSnapshot) view : game.getSnapshot();
+
+			// the message lines are repainted where they were and where they are now
+			Vector<Rectangle> regions = new Vector<Rectangle>();
+
+			for (Message m : getActiveMessages(field.getStep())) {
+
+				int[] line = getLine(field, m);
+
+				if (line == null)
+					continue;
+
+				regions.add(getBounds(line));
+			}
+
+			Vector<Rectangle> dirty = new Vector<Rectangle>(overlays);
+			dirty.addAll(regions);
+			overlays = regions;
+
+			if (visits == null)
+				repaintRegions(dirty);
+
+		}
+
 		/* (non-Javadoc)
 		 * @see org.grid.server.ClientsPanel.SelectionObserver#clientSelected(org.grid.server.Dispatcher.Client)
 		 */
@@ -269,8 +376,6 @@ public class Main {
 
 			synchronized (this) {
 				if (client == null) {
-					if (visualization != null)
-						game.removeListener(visualization);
 					visualization = null;
 					setBasePallette(null);
 					return;
@@ -281,10 +386,8 @@ public class Main {
 				if (a == null)
 					return;
 
-				visualization = new VisitMap(game.getField(), history, a, game
-						.getNeighborhoodSize());
+				visualization = visitMaps.getView(a);
 				setBasePallette((Palette) visualization);
-				game.addListener(visualization);
 			}
 
 		}
@@ -315,21 +418,14 @@ public class Main {
 			
 			int y = e.getY() / cellSize;
 			
-			Field field = game.getField();
+			Body b = game.getSnapshot().getBody(x, y);
 			
-			Cell cell = field.getCell(x, y);
-			
-			if (cell != null) {
-				Body b = cell.getBody();
+			if (b instanceof Agent) {
 				
-				if (b instanceof Agent) {
-					
-					Client cl = ((Agent)b).getTeam().findById(((Agent)b).getId());
-					
-					if (cl != null && Main.clientsPanel != null) {
-						Main.clientsPanel.select(cl);
-					}
-					
+				Client cl = ((Agent)b).getTeam().findById(((Agent)b).getId());
+				
+				if (cl != null && Main.clientsPanel != null) {
+					Main.clientsPanel.select(cl);
 				}
 				
 			}
@@ -367,40 +463,66 @@ public class Main {
 	 * Game is loaded from given .game file.
 	 * Dispatcher is created (sets socket and some game parameters).
 	 * Game is run in thread where steps are triggered (handling moves and collisions).
-	 * Create GUI.
+	 * Create GUI (unless running headless).
 	 *
-	 * @param args Filename of .game configuration file
+	 * Usage: <tt>Main [--headless] [--speedup N] file.game</tt>. In headless mode no
+	 * window is created, the game starts as soon as every team has a connected client
+	 * and the steps are not throttled unless a speedup factor is given. A speedup of
+	 * N runs the game at N times <tt>gameplay.speed</tt> (at most 1000 steps per
+	 * second), 0 disables throttling.
+	 *
+	 * @param args Filename of .game configuration file, optionally preceded by options
 	 * @throws IOException Signals that an I/O exception has occurred.
 	 */
 	public static void main(String[] args) throws IOException {
 		
 		info("Starting game server (release %s)", RELEASE);
 		System.out.println(System.getProperty("user.dir"));
-		if (args.length < 1) {
+
+		boolean headless = GraphicsEnvironment.isHeadless();
+		int speedup = -1;
+		String gameFile = null;
+
+		for (int i = 0; i < args.length; i++) {
+			if ("--headless".equals(args[i])) {
+				headless = true;
+			} else if ("--speedup".equals(args[i]) && i + 1 < args.length) {
+				try {
+					speedup = Math.max(0, Integer.parseInt(args[++i]));
+				} catch (NumberFormatException e) {
+					info("Invalid speedup factor: %s", args[i]);
+					System.exit(1);
+				}
+			} else {
+				gameFile = args[i];
+			}
+		}
+
+		if (gameFile == null) {
 			info("Please provide game description file location as an argument.");
 			System.exit(1);
 		}
 
-		info("Java2D OpenGL acceleration "
-				+ (("true".equalsIgnoreCase(System
-						.getProperty("sun.java2d.opengl"))) ? "enabled"
-						: "not enabled"));
+		if (speedup < 0)
+			speedup = headless ? 0 : 1;
 
-		game = Game.loadFromFile(new File(args[0]));
-		
-		//sets if food is displayed on GUI
-		if(game.getFlagMode() == FlagMode.BENCHMARK)
-		{
-			view.SetBenchmarkMode(true);
+		if (!headless) {
+			info("Java2D OpenGL acceleration "
+					+ (("true".equalsIgnoreCase(System
+							.getProperty("sun.java2d.opengl"))) ? "enabled"
+							: "not enabled"));
 		}
 
+		game = Game.loadFromFile(new File(gameFile));
+
+		//get config folder name
+		//that will be using also for storing logs
+		String folderName = "";
+		
 		try {
-			//get config folder name
-			//that will be using also for storing logs
-			String folderName = "";
 			try
 			{
-				String[] path = args[0].split("/");
+				String[] path = gameFile.split("/");
 				if(path.length > 1)
 				{
 					for(int i = 0; i < path.length -1; i++)
@@ -415,88 +537,204 @@ public class Main {
 			
 		} catch (Exception e) {}
 		
+		if (game.getProperty("server.replay", false)) {
+			File replayFile = new File(folderName + logDate.format(new Date()) + "_" + game.getTitle() + ".replay");
+			try {
+				final ReplayRecorder replay = new ReplayRecorder(game, replayFile);
+				game.addListener(replay);
+				Runtime.getRuntime().addShutdownHook(new Thread() {
+					public void run() {
+						replay.close();
+					}
+				});
+				log("Recording replay to " + replayFile);
+			} catch (IOException e) {
+				log("Unable to record replay: %s", e.toString());
+			}
+		}
 		
-		Dispatcher dispatcher = new Dispatcher(PORT, game);
+		
+		int spectatorPort = game.getProperty("server.spectators", 0);
+
+		if (spectatorPort > 0) {
+			try {
+				SpectatorServer spectators = new SpectatorServer(game, spectatorPort);
+				game.addListener(spectators);
+				Thread thread = new Thread(spectators, "Spectators");
+				thread.setDaemon(true);
+				thread.start();
+				log("Accepting spectators on port %d", spectatorPort);
+			} catch (IOException e) {
+				log("Unable to accept spectators: %s", e.toString());
+			}
+		}
 
-		final int gameSpeed = game.getSpeed();
+		Dispatcher dispatcher = new Dispatcher(PORT, game);
 
-		game.addListener(view);
+		history.setMemoryLimit(game.getProperty("history.memory", 0) * 1024L * 1024L);
 
 		game.addListener(history);
+
+		if (!headless) {
+			visitMaps = new VisitMaps(game);
+			game.addListener(visitMaps);
+
+			view = new GameSwingView();
+			gameStepDisplay = new JLabel();
+
+			//sets if food is displayed on GUI
+			if(game.getFlagMode() == FlagMode.BENCHMARK)
+			{
+				view.SetBenchmarkMode(true);
+			}
+
+			game.addListener(view);
+		}
+
+		// a throttled step takes at least a millisecond, so a large speedup
+		// does not turn the throttling off
+		int sleep = speedup == 0 ? 0 : (int) Math.max(1,
+				Math.round(1000.0 / ((double) Math.max(1, game.getSpeed()) * speedup)));
+
+		(new Thread(new GameLoop(sleep))).start();
+
+		if (!headless)
+			createWindow();
+
+		(new Thread(dispatcher)).start();
+		
+		log("Server ready.");
 		
-		(new Thread(new Runnable() {
+		if (headless) {
 
-			@Override
-			public void run() {
-				int sleep = 1000 / gameSpeed;
-				long start, used;
-				long gameStart = System.currentTimeMillis();
-				while (true) {
+			log("Running headless, waiting for clients of all teams.");
 
-					start = System.currentTimeMillis();
+			while (!allTeamsConnected()) {
+				try {
+					Thread.sleep(50);
+				} catch (InterruptedException e) {
+				}
+			}
 
-					if (running)
-					{
-						game.step(log);
-						
-						if(game.areAllFlagsCaptured())
-						{	
-							log("Game finished in " + ((System.currentTimeMillis() - gameStart) / 1000) + " seconds.");
-							for(String data : game.getDataForAllTeams())
-							{
-								log(data);
-							}
-							System.exit(0);
-						}
-					}
-					
-					
-					if (game.getStep() % 100 == 0) {
-						view.update(game.getField());
-					}
+		} else {
+		
+			try {
+				Thread.sleep(5000);
+			} catch (InterruptedException e1) {
+				// TODO Auto-generated catch block
+				e1.printStackTrace();
+			}
+		
+		}
+		
+		running = true;	
+	
+	}
 
-					used = System.currentTimeMillis() - start;
+	/**
+	 * The game loop that is executed in a separate thread. Triggers the game steps
+	 * and keeps the optional display up to date.
+	 */
+	private static class GameLoop implements Runnable {
 
-					stepTime += used;
-					stepCount++;
+		private int sleep;
 
-					if (game.getStep() % 100 == 0 && running) {
-						long renderFPS, stepFPS;
+		/**
+		 * Instantiates a new game loop.
+		 *
+		 * @param sleep the duration of a step in milliseconds, 0 means as fast as possible
+		 */
+		public GameLoop(int sleep) {
+			this.sleep = sleep;
+		}
 
-						synchronized (mutex) {
-							renderFPS = (renderCount * 1000)
-									/ Math.max(1, renderTime);
-							renderCount = 0;
-							renderTime = 0;
-						}
+		@Override
+		public void run() {
+			long start, used;
+			long gameStart = -1;
+			while (true) {
 
-						stepFPS = (stepCount * 1000) / Math.max(1, stepTime);
-						stepCount = 0;
-						stepTime = 0;
+				start = System.currentTimeMillis();
 
-						info(
-										"Game step: %d (step: %d fps, render: %d fps)",
-										game.getStep(), stepFPS, renderFPS);
-					}
+				if (running)
+				{
+					if (gameStart < 0)
+						gameStart = start;
 
-					if (game.getStep() % 10 == 0) {
-						gameStepDisplay.setText(String.format("Step: %d", game.getStep()));
-					}
+					game.step(log);
 					
-					try {
-						if (used < sleep)
-							Thread.sleep(sleep - used);
-						else {
-							info("Warning: low frame rate");
+					if(game.areAllFlagsCaptured())
+					{	
+						log("Game finished in " + ((System.currentTimeMillis() - gameStart) / 1000) + " seconds.");
+						for(String data : game.getDataForAllTeams())
+						{
+							log(data);
 						}
-					} catch (InterruptedException e) {
-						e.printStackTrace();
+						System.exit(0);
 					}
+				}
+				
+				
+				used = System.currentTimeMillis() - start;
+
+				stepTime += used;
+				stepCount++;
+
+				if (game.getStep() % 100 == 0 && running) {
+					long renderFPS, stepFPS;
 
+					synchronized (mutex) {
+						renderFPS = (renderCount * 1000)
+								/ Math.max(1, renderTime);
+						renderCount = 0;
+						renderTime = 0;
+					}
+
+					stepFPS = (stepCount * 1000) / Math.max(1, stepTime);
+					stepCount = 0;
+					stepTime = 0;
+
+					info(
+									"Game step: %d (step: %d fps, render: %d fps)",
+									game.getStep(), stepFPS, renderFPS);
+				}
+
+				try {
+					if (!running)
+						Thread.sleep(Math.max(sleep, 10));
+					else if (used < sleep)
+						Thread.sleep(sleep - used);
+					else if (sleep > 0) {
+						info("Warning: low frame rate");
+					}
+				} catch (InterruptedException e) {
+					e.printStackTrace();
 				}
 
 			}
-		})).start();
+
+		}
+	}
+
+	/**
+	 * Checks if every team has at least one connected client.
+	 *
+	 * @return true if all teams have a client
+	 */
+	private static boolean allTeamsConnected() {
+
+		for (Team t : game.getTeams()) {
+			if (!t.hasClients())
+				return false;
+		}
+
+		return true;
+	}
+
+	/**
+	 * Creates the main window of the server.
+	 */
+	private static void createWindow() {
 
 		JFrame window = new JFrame("AgentField - " + game.getTitle());
 
@@ -574,20 +812,33 @@ public class Main {
 		
 		window.setVisible(true);
 
-		(new Thread(dispatcher)).start();
-		
-		log("Server ready.");
-		
-		
-		try {
-			Thread.sleep(5000);
-		} catch (InterruptedException e1) {
-			// TODO Auto-generated catch block
-			e1.printStackTrace();
-		}
-		
-		running = true;	
-	
+		// the view only shows the snapshots published by the game loop, a slow
+		// window skips snapshots instead of slowing down the game
+		int fps = Math.max(1, game.getProperty("gui.fps", 25));
+
+		Timer render = new Timer(1000 / fps, new ActionListener() {
+
+			private FieldSnapshot shown = null;
+
+			@Override
+			public void actionPerformed(ActionEvent e) {
+
+				FieldSnapshot frame = game.getSnapshot();
+
+				if (frame == shown)
+					return;
+
+				shown = frame;
+
+				view.update(frame);
+				gameStepDisplay.setText(String.format("Step: %d", frame.getStep()));
+
+			}
+		});
+
+		render.setCoalesce(true);
+		render.start();
+
 	}
 	
 	private static DateFormat logDate = new SimpleDateFormat("yyyy-MM-dd_HH:mm:ss");
@@ -0,0 +1,104 @@
+/*
+ *  AgentField - a simple capture-the-flag simulation for distributed intelligence
+ *  Copyright (C) 2011 Luka Cehovin <http://vicos.fri.uni-lj.si/lukacu>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.grid.server;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.grid.server.Game.MessageContainter;
+
+/**
+ * A timing wheel of messages that are waiting to be delivered. The messages are
+ * stored in the slot of the step in which they are due, messages that are due
+ * more than one turn of the wheel later stay in the slot until their step
+ * comes. The wheel is only used by the game thread.
+ */
+public class MessageWheel {
+
+	private static final int SLOTS = 256;
+
+	private ArrayList<ArrayList<MessageContainter>> slots;
+
+	private int size = 0;
+
+	/**
+	 * Instantiates a new empty wheel.
+	 */
+	public MessageWheel() {
+
+		slots = new ArrayList<ArrayList<MessageContainter>>(SLOTS);
+
+		for (int i = 0; i < SLOTS; i++)
+			slots.add(new ArrayList<MessageContainter>());
+
+	}
+
+	/**
+	 * Adds a message to the wheel.
+	 *
+	 * @param message the message, delivered in the step returned by
+	 * {@link MessageContainter#getStep()}
+	 */
+	public void schedule(MessageContainter message) {
+
+		slots.get(message.getStep() & (SLOTS - 1)).add(message);
+		size++;
+
+	}
+
+	/**
+	 * Removes the messages that are due in the given step from the wheel.
+	 *
+	 * @param step the current step
+	 * @return the messages in the order in which they were scheduled
+	 */
+	public List<MessageContainter> advance(int step) {
+
+		ArrayList<MessageContainter> slot = slots.get(step & (SLOTS - 1));
+
+		if (slot.isEmpty())
+			return Collections.emptyList();
+
+		ArrayList<MessageContainter> due = new ArrayList<MessageContainter>();
+		int kept = 0;
+
+		for (int i = 0; i < slot.size(); i++) {
+			MessageContainter m = slot.get(i);
+
+			if (m.getStep() <= step)
+				due.add(m);
+			else
+				slot.set(kept++, m);
+		}
+
+		slot.subList(kept, slot.size()).clear();
+		size -= due.size();
+
+		return due;
+
+	}
+
+	/**
+	 * Returns the number of messages in the wheel.
+	 */
+	public int size() {
+		return size;
+	}
+
+}
@@ -0,0 +1,165 @@
+/*
+ *  AgentField - a simple capture-the-flag simulation for distributed intelligence
+ *  Copyright (C) 2011 Luka Cehovin <http://vicos.fri.uni-lj.si/lukacu>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.grid.server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import org.grid.protocol.NewMessage.Direction;
+import org.grid.server.Field.BodyPosition;
+
+/**
+ * Moves the agents in two phases. First the new positions of all agents are
+ * computed without changing the field, in parallel if there are enough
+ * agents. Then the moves are applied one by one in the given order, which
+ * resolves collisions, flag pickups and flag drops. The result only depends
+ * on the order of the agents.
+ */
+public class Movement {
+
+	/**
+	 * The intended move of an agent.
+	 */
+	public static class Plan {
+
+		private Agent agent;
+
+		private BodyPosition position;
+
+		private Direction direction;
+
+		public Plan(Agent agent, BodyPosition position, Direction direction) {
+			this.agent = agent;
+			this.position = position;
+			this.direction = direction;
+		}
+
+		public Agent getAgent() {
+			return agent;
+		}
+
+		public BodyPosition getPosition() {
+			return position;
+		}
+
+		public Direction getDirection() {
+			return direction;
+		}
+
+	}
+
+	// the minimum number of agents per worker for parallel planning
+	private static final int AGENTS_PER_WORKER = 128;
+
+	private ExecutorService executor = null;
+
+	private int workers;
+
+	/**
+	 * Instantiates a new movement engine.
+	 *
+	 * @param workers the number of threads used to plan the moves, planning is
+	 * done in the calling thread if less than 2
+	 */
+	public Movement(int workers) {
+
+		this.workers = workers;
+
+		if (workers > 1) {
+			executor = Executors.newFixedThreadPool(workers, new ThreadFactory() {
+
+				private int count = 0;
+
+				@Override
+				public synchronized Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "Movement worker " + count++);
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+
+	}
+
+	/**
+	 * Moves the agents.
+	 *
+	 * @param field the field
+	 * @param agents the agents in the order in which the moves are applied
+	 * @return the agents that have moved
+	 */
+	public List<Agent> move(final Field field, final List<Agent> agents) {
+
+		final Plan[] plans = new Plan[agents.size()];
+
+		int chunks = Math.min(workers, agents.size() / AGENTS_PER_WORKER);
+
+		if (executor == null || chunks < 2) {
+			plan(field, agents, plans, 0, plans.length);
+		} else {
+
+			List<Future<Object>> results = new ArrayList<Future<Object>>(chunks);
+
+			for (int i = 0; i < chunks; i++) {
+				final int from = i * plans.length / chunks;
+				final int to = (i + 1) * plans.length / chunks;
+
+				results.add(executor.submit(new Callable<Object>() {
+					@Override
+					public Object call() throws Exception {
+						plan(field, agents, plans, from, to);
+						return null;
+					}
+				}));
+			}
+
+			for (Future<Object> result : results) {
+				try {
+					result.get();
+				} catch (Exception e) {
+					throw new RuntimeException("Unable to plan the moves", e);
+				}
+			}
+
+		}
+
+		Vector<Agent> moved = new Vector<Agent>();
+
+		for (Plan plan : plans) {
+			if (plan != null && plan.getAgent().apply(field, plan))
+				moved.add(plan.getAgent());
+		}
+
+		return moved;
+
+	}
+
+	private static void plan(Field field, List<Agent> agents, Plan[] plans, int from, int to) {
+
+		for (int i = from; i < to; i++)
+			plans[i] = agents.get(i).plan(field);
+
+	}
+
+}
@@ -0,0 +1,369 @@
+/*
+ *  AgentField - a simple capture-the-flag simulation for distributed intelligence
+ *  Copyright (C) 2011 Luka Cehovin <http://vicos.fri.uni-lj.si/lukacu>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program. If not, see <http://www.gnu.org/licenses/>. 
+ */
+package org.grid.server;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.Arrays;
+import java.util.List;
+
+import org.grid.arena.Arena;
+import org.grid.protocol.NewMessage.BinaryWriter;
+import org.grid.replay.ReplayArena;
+import org.grid.replay.ReplayFormat;
+import org.grid.server.Dispatcher.Client;
+import org.grid.server.Field.BodyPosition;
+
+/**
+ * Writes the game into an append-only replay file that can be played with
+ * {@link org.grid.replay.ReplayPlayer}. At the start of each step the snapshot
+ * of the previous step is written as a frame with the cells that changed,
+ * every {@link ReplayFormat#KEYFRAME_INTERVAL} steps as a keyframe with all
+ * cells. Messages and score changes are written as they happen.
+ */
+public class ReplayRecorder implements GameListener, TeamListener {
+
+	private Game game;
+
+	private DataOutputStream out;
+
+	private int lastStep = -1, lastKeyframe = -1;
+
+	/**
+	 * Instantiates a new recorder and writes the header of the replay.
+	 *
+	 * @param game the game
+	 * @param file the replay file
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public ReplayRecorder(Game game, File file) throws IOException {
+
+		this.game = game;
+
+		out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 65536));
+
+		out.write(encodeStart(game.getSnapshot(), getTeams(game)));
+
+		for (Team team : game.getTeams())
+			team.addListener(this);
+
+	}
+
+	/**
+	 * Returns the teams of the game in the order of their indices.
+	 */
+	static Team[] getTeams(Game game) {
+
+		List<Team> list = game.getTeams();
+		Team[] teams = new Team[list.size()];
+
+		for (Team team : list) {
+			if (team.getIndex() >= 0 && team.getIndex() < teams.length)
+				teams[team.getIndex()] = team;
+		}
+
+		return teams;
+
+	}
+
+	/**
+	 * Encodes the start of a replay: the magic number and the length
+	 * prefixed header.
+	 */
+	static byte[] encodeStart(FieldSnapshot field, Team[] teams) {
+
+		byte[] header = encodeHeader(field, teams);
+
+		BinaryWriter writer = new BinaryWriter(16);
+
+		// the magic number is written in big endian order like DataOutput does
+		for (int shift = 24; shift >= 0; shift -= 8)
+			writer.writeByte(ReplayFormat.MAGIC >>> shift);
+
+		writer.writeVarint(header.length);
+
+		return concat(writer.toByteArray(), header);
+
+	}
+
+	/**
+	 * Encodes the header of a replay: the size and the base tiles of the field
+	 * and the names and colors of the teams.
+	 */
+	static byte[] encodeHeader(FieldSnapshot field, Team[] teams) {
+
+		BinaryWriter writer = new BinaryWriter(field.getWidth() * field.getHeight() + 64);
+
+		writer.writeVarint(ReplayFormat.VERSION);
+		writer.writeVarint(field.getWidth());
+		writer.writeVarint(field.getHeight());
+
+		byte[] tiles = new byte[field.getWidth() * field.getHeight()];
+
+		for (int j = 0; j < field.getHeight(); j++)
+			for (int i = 0; i < field.getWidth(); i++)
+				tiles[j * field.getWidth() + i] = (byte) field.getBaseTile(i, j);
+
+		writer.writeBytes(tiles);
+		writer.writeVarint(teams.length);
+
+		for (Team team : teams) {
+			try {
+				writer.writeBytes((team == null ? "" : team.getName()).getBytes("UTF-8"));
+			} catch (UnsupportedEncodingException e) {
+				throw new IllegalStateException(e);
+			}
+			writer.writeVarint(team == null ? 0 : team.getColor().getRGB() & 0xFFFFFF);
+		}
+
+		return writer.toByteArray();
+
+	}
+
+	/**
+	 * Encodes a frame record.
+	 *
+	 * @param field the snapshot
+	 * @param keyframe should all cells be written or only the changed ones
+	 */
+	static byte[] encodeFrame(FieldSnapshot field, boolean keyframe) {
+
+		return encodeFrame(field, keyframe ? null : field.getChangedCells());
+
+	}
+
+	/**
+	 * Encodes a frame record.
+	 *
+	 * @param field the snapshot
+	 * @param changed the cells to write or null to write a keyframe
+	 */
+	static byte[] encodeFrame(FieldSnapshot field, int[] changed) {
+
+		int width = field.getWidth();
+		boolean keyframe = changed == null;
+
+		BinaryWriter writer = new BinaryWriter(256);
+
+		writer.writeVarint(field.getStep());
+		writer.writeByte(keyframe ? 1 : 0);
+
+		if (keyframe) {
+
+			int count = 0;
+
+			for (int j = 0; j < field.getHeight(); j++)
+				for (int i = 0; i < width; i++)
+					if (field.getBodyTile(i, j) != 0)
+						count++;
+
+			writer.writeVarint(count);
+
+			for (int j = 0; j < field.getHeight(); j++)
+				for (int i = 0; i < width; i++)
+					if (field.getBodyTile(i, j) != 0)
+						writeCell(writer, field, j * width + i);
+
+		} else {
+
+			writer.writeVarint(changed.length);
+
+			for (int cell : changed)
+				writeCell(writer, field, cell);
+
+		}
+
+		return writer.toByteArray();
+
+	}
+
+	private static void writeCell(BinaryWriter writer, FieldSnapshot field, int cell) {
+
+		int x = cell % field.getWidth(), y = cell / field.getWidth();
+		int tile = field.getBodyTile(x, y);
+
+		writer.writeVarint(cell);
+		writer.writeVarint(tile);
+
+		if (!ReplayArena.hasTeam(tile))
+			return;
+
+		writer.writeByte(field.getBodyTeam(x, y) + 1);
+
+		if (tile == Arena.TILE_AGENT || tile == Arena.TILE_AGENT_FLAG)
+			writer.writeVarint(field.getAgentId(x, y));
+
+		writer.writeByte(Math.round(field.getBodyOffsetX(x, y) * ReplayFormat.OFFSET_SCALE));
+		writer.writeByte(Math.round(field.getBodyOffsetY(x, y) * ReplayFormat.OFFSET_SCALE));
+
+	}
+
+	/**
+	 * Encodes a record: the type, the length of the body and the body.
+	 */
+	static byte[] encodeRecord(int type, byte[] body) {
+
+		BinaryWriter writer = new BinaryWriter(8);
+
+		writer.writeByte(type);
+		writer.writeVarint(body.length);
+
+		return concat(writer.toByteArray(), body);
+
+	}
+
+	private static byte[] concat(byte[] prefix, byte[] body) {
+
+		byte[] result = Arrays.copyOf(prefix, prefix.length + body.length);
+		System.arraycopy(body, 0, result, prefix.length, body.length);
+
+		return result;
+
+	}
+
+	/**
+	 * Encodes a message record.
+	 */
+	static byte[] encodeMessage(int step, Team team, int from, int to, int length) {
+
+		BinaryWriter writer = new BinaryWriter(16);
+
+		writer.writeVarint(step);
+		writer.writeVarint(team.getIndex());
+		writer.writeVarint(from);
+		writer.writeVarint(to);
+		writer.writeVarint(length);
+
+		return encodeRecord(ReplayFormat.RECORD_MESSAGE, writer.toByteArray());
+
+	}
+
+	/**
+	 * Encodes a score record.
+	 */
+	static byte[] encodeScore(int step, Team team, int score) {
+
+		BinaryWriter writer = new BinaryWriter(16);
+
+		writer.writeVarint(step);
+		writer.writeVarint(team.getIndex());
+		writer.writeVarint(score);
+
+		return encodeRecord(ReplayFormat.RECORD_SCORE, writer.toByteArray());
+
+	}
+
+	private synchronized void write(byte[] record) {
+
+		if (out == null)
+			return;
+
+		try {
+			out.write(record);
+
+		} catch (IOException e) {
+			Main.log("Unable to write replay: %s", e.toString());
+			out = null;
+		}
+
+	}
+
+	/**
+	 * Writes the frame of the given snapshot if it has not been written yet.
+	 * A keyframe is written if a snapshot was skipped.
+	 */
+	private synchronized void writeFrame(FieldSnapshot field) {
+
+		if (field == null || field.getStep() <= lastStep)
+			return;
+
+		boolean keyframe = lastStep < 0 || field.getStep() != lastStep + 1
+				|| field.getStep() - lastKeyframe >= ReplayFormat.KEYFRAME_INTERVAL;
+
+		write(encodeRecord(ReplayFormat.RECORD_FRAME, encodeFrame(field, keyframe)));
+
+		lastStep = field.getStep();
+
+		if (keyframe)
+			lastKeyframe = lastStep;
+
+	}
+
+	/**
+	 * Writes the last frame and closes the file.
+	 */
+	public synchronized void close() {
+
+		writeFrame(game.getSnapshot());
+
+		if (out == null)
+			return;
+
+		try {
+			out.close();
+		} catch (IOException e) {
+			Main.log("Unable to write replay: %s", e.toString());
+		}
+
+		out = null;
+
+	}
+
+	@Override
+	public void step() {
+
+		writeFrame(game.getSnapshot());
+
+	}
+
+	@Override
+	public void message(Team team, int from, int to, int length) {
+
+		write(encodeMessage(game.getStep(), team, from, to, length));
+
+	}
+
+	@Override
+	public void position(Team team, int id, BodyPosition p) {
+
+		// positions are part of the frames
+
+	}
+
+	@Override
+	public void scoreChange(Team team, int score) {
+
+		write(encodeScore(game.getStep(), team, score));
+
+	}
+
+	@Override
+	public void clientConnect(Team team, Client client) {
+
+	}
+
+	@Override
+	public void clientDisconnect(Team team, Client client) {
+
+	}
+
+}
@@ -0,0 +1,279 @@
+/*
+ *  AgentField - a simple capture-the-flag simulation for distributed intelligence
+ *  Copyright (C) 2011 Luka Cehovin <http://vicos.fri.uni-lj.si/lukacu>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program. If not, see <http://www.gnu.org/licenses/>. 
+ */
+package org.grid.server;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Vector;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import org.grid.replay.ReplayFormat;
+import org.grid.server.Dispatcher.Client;
+import org.grid.server.Field.BodyPosition;
+
+/**
+ * Streams the game to spectators that watch it in other processes (see
+ * {@link org.grid.replay.Spectator}). The stream has the format of a replay
+ * file: a new spectator gets the header, the scores and a keyframe, then a
+ * frame with the changed cells for every step and the messages and score
+ * changes as they happen.
+ * <p>
+ * Every record is encoded once and queued for all spectators, each spectator
+ * has its own writer thread. A spectator that falls more than
+ * {@value #QUEUE_SIZE} records behind loses its queue and continues from a new
+ * keyframe, so a slow spectator never holds up the game.
+ */
+public class SpectatorServer implements Runnable, GameListener, TeamListener {
+
+	// the maximum number of records waiting for a spectator
+	private static final int QUEUE_SIZE = 4096;
+
+	private class Spectator implements Runnable {
+
+		private Socket socket;
+
+		private LinkedBlockingQueue<byte[]> queue = new LinkedBlockingQueue<byte[]>(QUEUE_SIZE);
+
+		// does the spectator receive frames, if not it waits for a keyframe
+		private boolean synced = false;
+
+		public Spectator(Socket socket) {
+			this.socket = socket;
+		}
+
+		/**
+		 * Queues a record, drops the queue if the spectator is too far behind.
+		 *
+		 * @return false if the record was not queued
+		 */
+		public boolean send(byte[] record) {
+
+			if (queue.offer(record))
+				return true;
+
+			queue.clear();
+			synced = false;
+
+			return false;
+
+		}
+
+		@Override
+		public void run() {
+
+			try {
+				OutputStream out = new BufferedOutputStream(socket.getOutputStream(), 65536);
+
+				out.write(start);
+
+				while (true) {
+					out.write(queue.take());
+
+					if (queue.isEmpty())
+						out.flush();
+				}
+
+			} catch (IOException e) {
+			} catch (InterruptedException e) {
+			}
+
+			close();
+
+		}
+
+		public void close() {
+
+			spectators.remove(this);
+
+			try {
+				socket.close();
+			} catch (IOException e) {
+			}
+
+			Main.log("Spectator %s disconnected", socket.getRemoteSocketAddress());
+
+		}
+
+	}
+
+	private Game game;
+
+	private ServerSocket socket;
+
+	private Vector<Spectator> spectators = new Vector<Spectator>();
+
+	// the start of the stream, the header does not change during the game
+	private byte[] start;
+
+	private FieldSnapshot last = null;
+
+	/**
+	 * Instantiates a new spectator server.
+	 *
+	 * @param game the game
+	 * @param port the port on which spectators connect
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public SpectatorServer(Game game, int port) throws IOException {
+
+		this.game = game;
+
+		socket = new ServerSocket(port);
+
+		start = ReplayRecorder.encodeStart(game.getSnapshot(), ReplayRecorder.getTeams(game));
+
+		for (Team team : game.getTeams())
+			team.addListener(this);
+
+	}
+
+	/**
+	 * Accepts the spectators.
+	 */
+	@Override
+	public void run() {
+
+		while (true) {
+
+			try {
+				Socket sck = socket.accept();
+				sck.setTcpNoDelay(true);
+
+				Spectator spectator = new Spectator(sck);
+
+				spectators.add(spectator);
+
+				Thread thread = new Thread(spectator, "Spectator " + sck.getRemoteSocketAddress());
+				thread.setDaemon(true);
+				thread.start();
+
+				Main.log("Spectator %s connected", sck.getRemoteSocketAddress());
+
+			} catch (IOException e) {
+				Main.log("Unable to accept spectators: %s", e.toString());
+				return;
+			}
+
+		}
+
+	}
+
+	/**
+	 * Returns the number of connected spectators.
+	 */
+	public int getSpectatorCount() {
+		return spectators.size();
+	}
+
+	@Override
+	public synchronized void step() {
+
+		FieldSnapshot field = game.getSnapshot();
+
+		if (field == null || field == last)
+			return;
+
+		if (spectators.isEmpty()) {
+			last = field;
+			return;
+		}
+
+		int[] changed = last == null ? null : field.getChangedCells(last);
+
+		last = field;
+
+		byte[] frame = null, keyframe = null;
+
+		for (Spectator spectator : spectators.toArray(new Spectator[0])) {
+
+			if (spectator.synced && changed != null) {
+
+				if (frame == null)
+					frame = ReplayRecorder.encodeRecord(ReplayFormat.RECORD_FRAME,
+							ReplayRecorder.encodeFrame(field, changed));
+
+				spectator.send(frame);
+
+				continue;
+			}
+
+			if (keyframe == null)
+				keyframe = ReplayRecorder.encodeRecord(ReplayFormat.RECORD_FRAME,
+						ReplayRecorder.encodeFrame(field, null));
+
+			boolean sent = true;
+
+			for (Team team : game.getTeams())
+				sent &= spectator.send(ReplayRecorder.encodeScore(field.getStep(), team, team.getScore()));
+
+			spectator.synced = sent && spectator.send(keyframe);
+
+		}
+
+	}
+
+	private synchronized void broadcast(byte[] record) {
+
+		for (Spectator spectator : spectators.toArray(new Spectator[0])) {
+			if (spectator.synced)
+				spectator.send(record);
+		}
+
+	}
+
+	@Override
+	public void message(Team team, int from, int to, int length) {
+
+		if (spectators.isEmpty())
+			return;
+
+		broadcast(ReplayRecorder.encodeMessage(game.getStep(), team, from, to, length));
+
+	}
+
+	@Override
+	public void position(Team team, int id, BodyPosition p) {
+
+		// positions are part of the frames
+
+	}
+
+	@Override
+	public void scoreChange(Team team, int score) {
+
+		if (spectators.isEmpty())
+			return;
+
+		broadcast(ReplayRecorder.encodeScore(game.getStep(), team, score));
+
+	}
+
+	@Override
+	public void clientConnect(Team team, Client client) {
+
+	}
+
+	@Override
+	public void clientDisconnect(Team team, Client client) {
+
+	}
+
+}
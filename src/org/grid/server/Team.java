@@ -19,14 +19,18 @@ package org.grid.server;
 
 import java.awt.Color;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Vector;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
 
 import org.grid.arena.Arena;
+import org.grid.protocol.NewMessage;
 import org.grid.server.Dispatcher.Client;
 import org.grid.server.Field.Body;
 import org.grid.server.Field.BodyPosition;
@@ -114,6 +118,9 @@ public class Team {
 	
 	private LinkedList<Agent> removed = new LinkedList<Agent>();
 	
+	// index of the used clients by the id of their agent, read without locking
+	private ConcurrentHashMap<Integer, Client> agents = new ConcurrentHashMap<Integer, Client>();
+	
 	private HashSet<Integer> allocatedIds = new HashSet<Integer>();
 	
 	private HashSet<Flag> flags = new HashSet<Flag>();
@@ -130,6 +137,8 @@ public class Team {
 	
 	private int spawnedAgents = 0;
 	
+	private int index = 0;
+	
 	public Team(String name, Color color, FlagMode mode) {
 		
 		this.name = name;
@@ -146,6 +155,20 @@ public class Team {
 		return flagMode == FlagMode.BENCHMARK;
 	}
 	
+	/**
+	 * Returns the index of the team in the game (the order in which the teams
+	 * are declared, starting with 0).
+	 *
+	 * @return the index
+	 */
+	public int getIndex() {
+		return index;
+	}
+
+	public void setIndex(int index) {
+		this.index = index;
+	}
+
 	public String getPassphrase() {
 		return passphrase;
 	}
@@ -205,6 +228,7 @@ public class Team {
 			
 			client.setAgent(agt);
 			used.add(client);
+			agents.put(agt.getId(), client);
 			
 			Main.info("New agent spawned for team: " + name + " (id: " + agt.getId() + ")");
 			spawnedAgents ++;
@@ -241,6 +265,7 @@ public class Team {
 			if (client.getAgent() != null) {
 				client.getAgent().die();
 				removed.add(client.getAgent());
+				agents.remove(client.getAgent().getId(), client);
 			}
 			
 			// just in case ... remove from everywhere :)
@@ -253,6 +278,36 @@ public class Team {
 		
 	}
 	
+	/**
+	 * Checks if the team has any connected clients (with or without an agent).
+	 *
+	 * @return true if at least one client is connected
+	 */
+	public boolean hasClients() {
+		
+		synchronized (pool) {
+			
+			return !pool.isEmpty() || !used.isEmpty();
+			
+		}
+		
+	}
+	
+	/**
+	 * Returns the clients that control an agent.
+	 *
+	 * @return a copy of the list of clients
+	 */
+	public List<Client> getUsedClients() {
+		
+		synchronized (pool) {
+			
+			return new ArrayList<Client>(used);
+			
+		}
+		
+	}
+	
 	public int size() {
 		
 		synchronized (pool) {
@@ -279,6 +334,7 @@ public class Team {
 				if (!c.getAgent().isAlive()) {
 
 					removed.add(c.getAgent());
+					agents.remove(c.getAgent().getId(), c);
 					
 					c.setAgent(null);
 					remove.add(c);
@@ -307,63 +363,96 @@ public class Team {
 	}
 	
 	
-	public List<Agent> move(Field field) {
+	/**
+	 * Returns the agents of the team ordered by their ids.
+	 *
+	 * @return the list of agents
+	 */
+	public List<Agent> listAgents() {
 		
-		Vector<Agent> moved = new Vector<Agent>();
+		Vector<Agent> list = new Vector<Agent>();
 		
 		synchronized (pool) {
 
 			for (Client c : used) {
-			
-				if (c.getAgent() != null) {
-					if (c.getAgent().move(field))
-						moved.add(c.getAgent());
-				}
-				
+				if (c.getAgent() != null)
+					list.add(c.getAgent());
 			}
 
 		}
+		
+		Collections.sort(list, new Comparator<Agent>() {
+			@Override
+			public int compare(Agent a1, Agent a2) {
+				return a1.getId() < a2.getId() ? -1 : (a1.getId() == a2.getId() ? 0 : 1);
+			}
+		});
 	
-		return moved;
+		return list;
 	}
 	
-	public void dispatch() {
+	/**
+	 * Notifies all clients of the team that the step is finished so that the
+	 * ones waiting for a move to complete can be answered.
+	 */
+	public void completeMoves() {
 		
 		synchronized (pool) {
 
 			for (Client c : used) {
-			
-				if (c.getAgent() != null) {
-					MessageContainter msg = c.getAgent().pullMessage();
-					if (msg != null) {
-						
-						Client cltto = findById(msg.getTo());
-						
-						if (cltto != null)
-							cltto.send(c.getAgent().getId(), msg.getMessage());
-						
-					}
-				}
+				c.completeMove();
 			}
+			
 		}
+		
 	}
 	
-	public Client findById(int id) {
+	/**
+	 * Delivers a message to its receivers. The message is dropped if the sender
+	 * is no longer alive.
+	 *
+	 * @param msg the message
+	 */
+	public void deliver(MessageContainter msg) {
 		
-		synchronized (pool) {
+		if (findById(msg.getFrom()) == null)
+			return;
 		
-			for (Client cl : used) {
-				
-				if (cl.getAgent() != null && cl.getAgent().getId() == id)
-					return cl;
-				
-			}
+		// the message is encoded once for all receivers
+		NewMessage.ReceiveMessage receive = new NewMessage.ReceiveMessage(
+				msg.getFrom(), msg.getMessage());
+		
+		for (int to : msg.getRecipients()) {
+		
+			Client cltto = findById(to);
+		
+			if (cltto != null)
+				cltto.send(receive);
 			
-			return null;
 		}
 		
 	}
 	
+	/**
+	 * Finds the client that controls the agent with the given id. The lookup
+	 * does not lock the team.
+	 *
+	 * @param id the id of the agent
+	 * @return the client or null if there is no such agent
+	 */
+	public Client findById(int id) {
+		
+		Client cl = agents.get(id);
+		
+		if (cl == null)
+			return null;
+		
+		Agent agent = cl.getAgent();
+		
+		return agent != null && agent.getId() == id ? cl : null;
+		
+	}
+	
 	public int getActiveFlagsCount() {
 		return flags.size();
 	}
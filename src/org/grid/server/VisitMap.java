@@ -1,18 +1,19 @@
 package org.grid.server;
 
 import java.awt.Color;
-import java.util.Arrays;
 
 import org.grid.arena.Arena;
 import org.grid.arena.SwingView.Palette;
-import org.grid.server.Field.BodyPosition;
-import org.grid.server.History.HistoryPosition;
+import org.grid.server.VisitMaps.Coverage;
 
 
 /**
- * The Class VisitMap.
+ * A view of the visits of a single agent. The base tiles hold the number of
+ * visits of a cell plus one, or one for cells that were only in the
+ * neighborhood of the agent. The bodies are taken from the last snapshot of
+ * the field.
  */
-public class VisitMap implements Arena, Palette, GameListener {
+public class VisitMap implements Arena, Palette {
 
 	private static Color heatPalette[];
 	
@@ -36,67 +37,24 @@ public class VisitMap implements Arena, Palette, GameListener {
 
 	}
 	
-	private int[] cells;
+	private Game game;
 	
-	private int width, height;
-	
-	private Field field;
+	private Coverage coverage;
 	
 	private Agent agent;
 	
-	private BodyPosition lastPosition = null;
-	
-	private int neighborhoodSize;
-	
-	public VisitMap(Field field, History history, Agent agent, int neighborhoodSize) {
-		this.field = field;
-		this.width = field.getWidth();
-		this.height = field.getHeight();
-		
+	VisitMap(Game game, Coverage coverage, Agent agent) {
+		this.game = game;
+		this.coverage = coverage;
 		this.agent = agent;
-		this.cells = new int[width * height];
-		Arrays.fill(cells, 0);
-		
-		this.neighborhoodSize = neighborhoodSize;
-		
-		setFromHistory(history, agent.getTeam(), agent.getId());
 	}
 	
 	public int getHeight() {
-		return height;
+		return game.getField().getHeight();
 	}
 
 	public int getWidth() {
-		return width;
-	}
-
-	public void clear() {
-		Arrays.fill(cells, 0);
-	}
-	
-	private void setFromHistory(History history, Team team, int agent) {
-		
-		clear();
-		
-		Iterable<HistoryPosition> h = history.getAgentHistory(team, agent);
-		
-		if (h == null)
-			return;
-		
-		lastPosition = null;
-		
-		for (HistoryPosition p : h) {
-			if (lastPosition == null || !p.equals(lastPosition)) {
-
-				cells[p.getY() * width + p.getX()]++;
-				
-				markNeighborhood(p.getX(), p.getY());
-			}
-			
-			lastPosition = p;
-		}
-		
-		
+		return game.getField().getWidth();
 	}
 
 	@Override
@@ -111,69 +69,33 @@ public class VisitMap implements Arena, Palette, GameListener {
 
 	@Override
 	public int getBaseTile(int x, int y) {
-		return cells[y * width + x];
+		
+		int visits = coverage.getVisits(x, y);
+		
+		if (visits > 0)
+			return visits + 1;
+		
+		return coverage.isCovered(x, y) ? 1 : 0;
 	}
 
 	@Override
 	public Color getBodyColor(int x, int y) {
-		return field.getBodyColor(x, y);
+		return game.getSnapshot().getBodyColor(x, y);
 	}
 
 	@Override
 	public float getBodyOffsetX(int x, int y) {
-		return field.getBodyOffsetX(x, y);
+		return game.getSnapshot().getBodyOffsetX(x, y);
 	}
 
 	@Override
 	public float getBodyOffsetY(int x, int y) {
-		return field.getBodyOffsetY(x, y);
+		return game.getSnapshot().getBodyOffsetY(x, y);
 	}
 
 	@Override
 	public int getBodyTile(int x, int y) {
-		return field.getBodyTile(x, y);
-	}
-
-	@Override
-	public void message(Team team, int from, int to, int length) {
-
-	}
-
-	@Override
-	public void position(Team team, int id, BodyPosition p) {
-		
-		if (agent.getId() != id)
-			return;
-		
-		if (lastPosition == null || !p.equals(lastPosition)) {
-
-			cells[p.getY() * width + p.getX()]++;
-			markNeighborhood(p.getX(), p.getY());
-		}
-		lastPosition = p;
-	}
-
-	private void markNeighborhood(int x, int y) {
-		
-		int sX = Math.max(0, x - neighborhoodSize);
-		int eX = Math.min(width-1, x + neighborhoodSize);
-		int sY = Math.max(0, y - neighborhoodSize);
-		int eY = Math.min(height-1, y + neighborhoodSize);		
-		
-		for (int j = sY; j <= eY; j++) {
-			for (int i = sX; i <= eX; i++) {
-				
-				if (cells[j * width + i] == 0)
-					cells[j * width + i] = 1;
-				
-			}
-		}
-	
-	}
-	
-	@Override
-	public void step() {
-
+		return game.getSnapshot().getBodyTile(x, y);
 	}
 	
 	public Agent getAgent() {
@@ -0,0 +1,219 @@
+/*
+ *  AgentField - a simple capture-the-flag simulation for distributed intelligence
+ *  Copyright (C) 2011 Luka Cehovin <http://vicos.fri.uni-lj.si/lukacu>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program. If not, see <http://www.gnu.org/licenses/>. 
+ */
+package org.grid.server;
+
+import java.util.Hashtable;
+
+import org.grid.server.Field.BodyPosition;
+
+/**
+ * Keeps the visit and coverage counts of all agents. The counts are updated
+ * with every move, so a {@link VisitMap} for an agent can be shown at any
+ * time without going through its history. The counts are stored in sparse
+ * tiles that are allocated only for the parts of the field an agent has seen.
+ */
+public class VisitMaps implements GameListener {
+
+	private static final int TILE_SHIFT = 4;
+
+	private static final int TILE_SIZE = 1 << TILE_SHIFT;
+
+	/**
+	 * The visits and the coverage of a single agent.
+	 */
+	public class Coverage {
+
+		// visit counts of the cells, tiles of TILE_SIZE x TILE_SIZE cells
+		private int[][] visits;
+
+		// cells that were in the neighborhood of the agent, one bit per cell
+		private long[][] covered;
+
+		private int lastX = -1, lastY = -1;
+
+		private Coverage() {
+			visits = new int[tilesX * tilesY][];
+			covered = new long[tilesX * tilesY][];
+		}
+
+		private int tile(int x, int y) {
+			return (y >> TILE_SHIFT) * tilesX + (x >> TILE_SHIFT);
+		}
+
+		private int offset(int x, int y) {
+			return ((y & (TILE_SIZE - 1)) << TILE_SHIFT) | (x & (TILE_SIZE - 1));
+		}
+
+		private void visit(int x, int y) {
+
+			int t = tile(x, y);
+
+			if (visits[t] == null)
+				visits[t] = new int[TILE_SIZE * TILE_SIZE];
+
+			visits[t][offset(x, y)]++;
+
+			int sX = Math.max(0, x - neighborhoodSize);
+			int eX = Math.min(width - 1, x + neighborhoodSize);
+			int sY = Math.max(0, y - neighborhoodSize);
+			int eY = Math.min(height - 1, y + neighborhoodSize);
+
+			for (int j = sY; j <= eY; j++) {
+				for (int i = sX; i <= eX; i++) {
+
+					t = tile(i, j);
+
+					if (covered[t] == null)
+						covered[t] = new long[TILE_SIZE * TILE_SIZE / 64];
+
+					int o = offset(i, j);
+
+					covered[t][o >> 6] |= 1L << (o & 63);
+				}
+			}
+
+		}
+
+		/**
+		 * Returns the number of visits of the cell.
+		 */
+		public int getVisits(int x, int y) {
+
+			if (x < 0 || x >= width || y < 0 || y >= height)
+				return 0;
+
+			int[] tile = visits[tile(x, y)];
+
+			return tile == null ? 0 : tile[offset(x, y)];
+
+		}
+
+		/**
+		 * Checks if the cell was in the neighborhood of the agent.
+		 */
+		public boolean isCovered(int x, int y) {
+
+			if (x < 0 || x >= width || y < 0 || y >= height)
+				return false;
+
+			long[] tile = covered[tile(x, y)];
+
+			if (tile == null)
+				return false;
+
+			int o = offset(x, y);
+
+			return (tile[o >> 6] & (1L << (o & 63))) != 0;
+
+		}
+
+	}
+
+	private Game game;
+
+	private int width, height, tilesX, tilesY;
+
+	private int neighborhoodSize;
+
+	private Hashtable<Team, Hashtable<Integer, Coverage>> teams = new Hashtable<Team, Hashtable<Integer, Coverage>>();
+
+	/**
+	 * Instantiates a new service for the given game. The service has to be
+	 * registered as a listener of the game.
+	 *
+	 * @param game the game
+	 */
+	public VisitMaps(Game game) {
+
+		this.game = game;
+		this.width = game.getField().getWidth();
+		this.height = game.getField().getHeight();
+		this.tilesX = (width + TILE_SIZE - 1) >> TILE_SHIFT;
+		this.tilesY = (height + TILE_SIZE - 1) >> TILE_SHIFT;
+		this.neighborhoodSize = game.getNeighborhoodSize();
+
+	}
+
+	private Coverage getCoverage(Team team, int id, boolean create) {
+
+		Hashtable<Integer, Coverage> agents = teams.get(team);
+
+		if (agents == null) {
+			if (!create)
+				return null;
+			agents = new Hashtable<Integer, Coverage>();
+			teams.put(team, agents);
+		}
+
+		Coverage coverage = agents.get(id);
+
+		if (coverage == null && create) {
+			coverage = new Coverage();
+			agents.put(id, coverage);
+		}
+
+		return coverage;
+
+	}
+
+	/**
+	 * Returns a view of the visits of the given agent. The view is updated as
+	 * the agent moves.
+	 *
+	 * @param agent the agent
+	 * @return the view
+	 */
+	public VisitMap getView(Agent agent) {
+
+		return new VisitMap(game, getCoverage(agent.getTeam(), agent.getId(), true), agent);
+
+	}
+
+	@Override
+	public void message(Team team, int from, int to, int length) {
+
+	}
+
+	@Override
+	public void position(Team team, int id, BodyPosition p) {
+
+		// the agent has died
+		if (p == null)
+			return;
+
+		Coverage coverage = getCoverage(team, id, true);
+
+		if (coverage.lastX == p.getX() && coverage.lastY == p.getY())
+			return;
+
+		coverage.lastX = p.getX();
+		coverage.lastY = p.getY();
+
+		if (p.getX() < 0 || p.getX() >= width || p.getY() < 0 || p.getY() >= height)
+			return;
+
+		coverage.visit(p.getX(), p.getY());
+
+	}
+
+	@Override
+	public void step() {
+
+	}
+
+}
@@ -0,0 +1,39 @@
+/*
+ *  AgentField - a simple capture-the-flag simulation for distributed intelligence
+ *  Copyright (C) 2011 Luka Cehovin <http://vicos.fri.uni-lj.si/lukacu>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.grid;
+
+import org.grid.protocol.BinaryCheck;
+import org.grid.protocol.ChannelCheck;
+import org.grid.protocol.DeltaCheck;
+import org.grid.replay.ReplayCheck;
+import org.grid.server.MessageWheelCheck;
+import org.grid.server.MovementCheck;
+
+/**
+ * Runs all self checks. The exit status is not zero if one of them fails.
+ */
+public class AllChecks {
+
+	public static void main(String[] args) {
+
+		Check.execute(new BinaryCheck(), new DeltaCheck(), new ChannelCheck(),
+				new MovementCheck(), new MessageWheelCheck(), new ReplayCheck());
+
+	}
+
+}
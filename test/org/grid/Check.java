@@ -0,0 +1,89 @@
+/*
+ *  AgentField - a simple capture-the-flag simulation for distributed intelligence
+ *  Copyright (C) 2011 Luka Cehovin <http://vicos.fri.uni-lj.si/lukacu>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.grid;
+
+/**
+ * A self check of a part of the server. A check reports every condition that
+ * does not hold and goes on, so one run lists all failures. The checks are
+ * kept apart from the sources of the server and are run with
+ * {@link #execute(Check...)}, usually through {@link AllChecks}.
+ */
+public abstract class Check {
+
+	private int failures = 0;
+
+	/**
+	 * Runs the check.
+	 *
+	 * @throws Exception
+	 *             if the check can not be completed, counted as a failure
+	 */
+	protected abstract void run() throws Exception;
+
+	/**
+	 * Reports a failure if the condition does not hold.
+	 *
+	 * @param condition
+	 *            the condition
+	 * @param description
+	 *            what was checked
+	 */
+	protected void check(boolean condition, String description) {
+
+		if (!condition) {
+			System.out.println("Failed: " + description);
+			failures++;
+		}
+
+	}
+
+	/**
+	 * Runs the given checks one after another and prints the result of each
+	 * of them. The exit status is not zero if one of them fails.
+	 *
+	 * @param checks
+	 *            the checks
+	 */
+	public static void execute(Check... checks) {
+
+		int failed = 0;
+
+		for (Check check : checks) {
+
+			String name = check.getClass().getSimpleName();
+
+			try {
+				check.run();
+			} catch (Exception e) {
+				check.check(false, name + " stopped: " + e);
+			}
+
+			if (check.failures > 0) {
+				System.out.printf("%s: %d checks failed\n", name, check.failures);
+				failed++;
+			} else {
+				System.out.printf("%s: passed\n", name);
+			}
+
+		}
+
+		System.exit(failed > 0 ? 1 : 0);
+
+	}
+
+}
@@ -0,0 +1,108 @@
+/*
+ *  AgentField - a simple capture-the-flag simulation for distributed intelligence
+ *  Copyright (C) 2011 Luka Cehovin <http://vicos.fri.uni-lj.si/lukacu>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.grid.protocol;
+
+import java.util.Arrays;
+import java.util.EnumSet;
+
+import org.grid.Check;
+import org.grid.protocol.NewMessage.Capability;
+import org.grid.protocol.NewMessage.InitializeMessage;
+import org.grid.protocol.NewMessage.MulticastMessage;
+import org.grid.protocol.NewMessage.RegisterMessage;
+import org.grid.protocol.NewMessage.SendMessage;
+
+/**
+ * A check of the message encodings. Every message is encoded, decoded again
+ * and compared with the original, malformed input has to be rejected.
+ */
+public class BinaryCheck extends Check {
+
+	public static void main(String[] args) {
+
+		execute(new BinaryCheck());
+
+	}
+
+	private static NewMessage binary(NewMessage message) {
+
+		byte[] encoded = message.encodeBinary();
+		return new NewMessage(encoded, 0, encoded.length);
+
+	}
+
+	private static NewMessage text(NewMessage message) {
+
+		return new NewMessage(message.encodeMessage());
+
+	}
+
+	private static boolean rejected(byte[] frame) {
+
+		try {
+			new NewMessage(frame, 0, frame.length);
+			return false;
+		} catch (IllegalArgumentException e) {
+			return true;
+		}
+
+	}
+
+	@Override
+	protected void run() {
+
+		RegisterMessage register = new RegisterMessage("team", "secret",
+				EnumSet.of(Capability.BINARY));
+
+		for (NewMessage decoded : new NewMessage[] { binary(register), text(register) }) {
+			RegisterMessage r = new RegisterMessage(decoded);
+			check("team".equals(r.getTeam()), "register team");
+			check("secret".equals(r.getPassphrase()), "register passphrase");
+			check(r.getCapabilities().equals(EnumSet.of(Capability.BINARY)),
+					"register capabilities");
+		}
+
+		InitializeMessage initialize = new InitializeMessage(-42, 1024, 100);
+		InitializeMessage i = new InitializeMessage(binary(initialize));
+		check(i.getId() == -42 && i.getMaxMessageSize() == 1024 && i.getGameSpeed() == 100,
+				"initialize fields");
+
+		byte[] payload = new byte[70000];
+		for (int j = 0; j < payload.length; j++)
+			payload[j] = (byte) j;
+
+		SendMessage s = new SendMessage(binary(new SendMessage(7, payload)));
+		check(s.getTo() == 7, "send receiver");
+		check(Arrays.equals(s.getMessage(), payload), "send payload");
+
+		int[] recipients = new int[] { 3, 1, 4, 1, 5 };
+		MulticastMessage m = new MulticastMessage(binary(new MulticastMessage(recipients, payload)));
+		check(Arrays.equals(m.getRecipients(), recipients), "multicast recipients");
+		check(Arrays.equals(m.getMessage(), payload), "multicast payload");
+
+		// a field count and an array length that do not fit into the frame
+		check(rejected(new byte[] { 4, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x07 }),
+				"oversized field count");
+		check(rejected(new byte[] { 4, 1, 3, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x07 }),
+				"oversized array length");
+		check(rejected(new byte[] { 4, 1, 9 }), "unknown field type");
+		check(rejected(new byte[] { 4, 2, 0 }), "truncated message");
+
+	}
+
+}
@@ -0,0 +1,173 @@
+/*
+ *  AgentField - a simple capture-the-flag simulation for distributed intelligence
+ *  Copyright (C) 2011 Luka Cehovin <http://vicos.fri.uni-lj.si/lukacu>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.grid.protocol;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.util.EnumSet;
+import java.util.Random;
+import java.util.Vector;
+
+import org.grid.Check;
+import org.grid.protocol.NewMessage.Capability;
+import org.grid.protocol.NewMessage.RegisterMessage;
+import org.grid.protocol.NewMessage.SendMessage;
+
+/**
+ * A check of the channels of a connection. Messages are sent over the
+ * channels of a local connection, once with a receiving socket that uses its
+ * own threads and once with one that is driven by a selector.
+ */
+public class ChannelCheck extends Check {
+
+	public static void main(String[] args) {
+
+		execute(new ChannelCheck());
+
+	}
+
+	@Override
+	protected void run() throws IOException {
+
+		run(null);
+
+		run(new ProtocolSelector(1, 2));
+
+	}
+
+	/**
+	 * Sends messages over the channels of a local connection and checks that
+	 * every channel receives its own messages in order. Messages for a channel
+	 * that the receiver does not know or has closed are dropped without
+	 * closing the connection.
+	 *
+	 * @param selector
+	 *            the selector that drives the receiving side or null if it
+	 *            uses its own threads
+	 */
+	private void run(ProtocolSelector selector) throws IOException {
+
+		String mode = selector == null ? " (threads)" : " (selector)";
+
+		ServerSocketChannel listener = ServerSocketChannel.open();
+		listener.socket().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+
+		ProtocolSocket client = new ProtocolSocket(new Socket(InetAddress.getLoopbackAddress(),
+				listener.socket().getLocalPort()));
+
+		ProtocolSocket server = selector == null ? new ProtocolSocket(listener.accept().socket())
+				: new ProtocolSocket(listener.accept(), selector);
+
+		listener.close();
+
+		ProtocolSocket[] receivers = new ProtocolSocket[] { new ProtocolSocket(server, 1),
+				new ProtocolSocket(server, 300) };
+
+		server.start();
+
+		ProtocolSocket[] senders = new ProtocolSocket[] { new ProtocolSocket(client, 1),
+				new ProtocolSocket(client, 300) };
+		ProtocolSocket unknown = new ProtocolSocket(client, 2);
+
+		Vector<Vector<String>> expected = new Vector<Vector<String>>();
+		expected.add(new Vector<String>());
+		expected.add(new Vector<String>());
+
+		Random random = new Random(1);
+
+		for (int i = 0; i < 200; i++) {
+
+			int c = random.nextInt(2);
+
+			// a few messages do not fit into the input buffer
+			byte[] payload = new byte[i % 50 == 0 ? 100000 : random.nextInt(100)];
+			random.nextBytes(payload);
+
+			NewMessage message = new SendMessage(i, payload);
+
+			senders[c].sendMessage(message);
+			expected.get(c).add(message.encodeMessage());
+
+			if (i % 10 == 0)
+				unknown.sendMessage(new SendMessage(-i, payload));
+		}
+
+		client.sendMessage(new RegisterMessage("team", "", EnumSet.noneOf(Capability.class)));
+
+		for (int c = 0; c < 2; c++)
+			check(receive(receivers[c], expected.get(c).size()).equals(expected.get(c)),
+					"messages of channel " + senders[c].getChannelId() + mode);
+
+		check(receive(server, 1).size() == 1, "message of the connection" + mode);
+
+		// a closed channel drops its messages, the other channels keep working
+		receivers[1].close();
+
+		senders[1].sendMessage(new SendMessage(1, new byte[1]));
+
+		NewMessage reply = new SendMessage(2, new byte[] { 1, 2, 3 });
+		receivers[0].sendMessage(reply);
+		senders[0].sendMessage(reply);
+
+		Vector<String> replies = new Vector<String>();
+		replies.add(reply.encodeMessage());
+
+		check(receive(receivers[0], 1).equals(replies), "channel after a closed channel" + mode);
+		check(receive(senders[0], 1).equals(replies), "channel in the other direction" + mode);
+		check(receivers[1].receiveMessage() == null, "closed channel" + mode);
+		check(server.receiveMessage() == null, "messages of unknown channels are dropped" + mode);
+		check(!server.isClosed() && !client.isClosed(), "connection stays open" + mode);
+
+		client.close();
+		server.close();
+
+	}
+
+	/**
+	 * Waits for the given number of messages, but not longer than five
+	 * seconds.
+	 */
+	private static Vector<String> receive(ProtocolSocket socket, int count) {
+
+		Vector<String> messages = new Vector<String>();
+
+		long deadline = System.currentTimeMillis() + 5000;
+
+		while (messages.size() < count && System.currentTimeMillis() < deadline) {
+
+			String message = socket.receiveMessage();
+
+			if (message == null) {
+				try {
+					Thread.sleep(10);
+				} catch (InterruptedException e) {
+				}
+				continue;
+			}
+
+			messages.add(message);
+		}
+
+		return messages;
+
+	}
+
+}
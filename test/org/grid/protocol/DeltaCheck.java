@@ -0,0 +1,118 @@
+/*
+ *  AgentField - a simple capture-the-flag simulation for distributed intelligence
+ *  Copyright (C) 2011 Luka Cehovin <http://vicos.fri.uni-lj.si/lukacu>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.grid.protocol;
+
+import java.util.Random;
+
+import org.grid.Check;
+import org.grid.protocol.NewMessage.Direction;
+import org.grid.protocol.NewMessage.StateMessage;
+
+/**
+ * A check of the neighborhood differences. The neighborhoods of an agent that
+ * walks over a random map are sent as packed differences (and sometimes as
+ * full grids) and the receiver has to reconstruct every one of them.
+ */
+public class DeltaCheck extends Check {
+
+	public static void main(String[] args) {
+
+		execute(new DeltaCheck());
+
+	}
+
+	@Override
+	protected void run() {
+
+		Random random = new Random(0);
+
+		int width = 40, height = 30, size = 5;
+		int[] map = new int[width * height];
+
+		for (int i = 0; i < map.length; i++) {
+			int r = random.nextInt(20);
+			map[i] = r < 12 ? Neighborhood.EMPTY : r < 18 ? -(r - 11) : 1 + random.nextInt(50);
+		}
+
+		int x = width / 2, y = height / 2;
+		Neighborhood previous = null, received = null;
+		int mismatches = 0, deltas = 0;
+
+		for (int step = 0; step < 500; step++) {
+
+			int dx = 0, dy = 0;
+
+			switch (random.nextInt(5)) {
+			case 1: dx = 1; break;
+			case 2: dx = -1; break;
+			case 3: dy = 1; break;
+			case 4: dy = -1; break;
+			}
+
+			// sometimes the agent is moved further, e.g. after a respawn
+			if (random.nextInt(50) == 0) {
+				dx = random.nextInt(width) - x;
+				dy = random.nextInt(height) - y;
+			}
+
+			x = Math.max(0, Math.min(width - 1, x + dx));
+			y = Math.max(0, Math.min(height - 1, y + dy));
+
+			// the map changes a little in every step
+			map[random.nextInt(map.length)] = random.nextInt(3) - 1;
+
+			Neighborhood n = new Neighborhood(size);
+			n.setOrigin(x, y);
+
+			for (int j = -size; j <= size; j++)
+				for (int i = -size; i <= size; i++) {
+					int cx = x + i, cy = y + j;
+					n.setCell(i, j, cx < 0 || cy < 0 || cx >= width || cy >= height
+							? Neighborhood.WALL : map[cy * width + cx]);
+				}
+
+			byte[] packed = null;
+
+			if (previous != null)
+				packed = n.getPackedDelta(previous, n.getOriginX() - previous.getOriginX(),
+						n.getOriginY() - previous.getOriginY());
+
+			if (packed == null)
+				packed = n.getPackedGrid();
+			else
+				deltas++;
+
+			byte[] encoded = new StateMessage(Direction.NONE, size, packed, false).encodeBinary();
+			StateMessage state = new StateMessage(new NewMessage(encoded, 0, encoded.length));
+
+			received = state.getNeighborhood(received);
+
+			for (int j = -size; j <= size; j++)
+				for (int i = -size; i <= size; i++)
+					if (received.getCell(i, j) != n.getCell(i, j))
+						mismatches++;
+
+			previous = n;
+		}
+
+		check(deltas > 400, "most states are sent as differences");
+		check(mismatches == 0, "neighborhoods rebuilt from differences");
+
+	}
+
+}
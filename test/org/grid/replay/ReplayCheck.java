@@ -0,0 +1,277 @@
+/*
+ *  AgentField - a simple capture-the-flag simulation for distributed intelligence
+ *  Copyright (C) 2011 Luka Cehovin <http://vicos.fri.uni-lj.si/lukacu>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.grid.replay;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Random;
+import java.util.Vector;
+
+import org.grid.Check;
+import org.grid.server.Agent;
+import org.grid.server.Field;
+import org.grid.server.Field.BodyPosition;
+import org.grid.server.Field.Cell;
+import org.grid.server.Game;
+import org.grid.server.ReplayRecorder;
+import org.grid.server.Team;
+import org.grid.server.Team.Flag;
+
+/**
+ * A check of seeking in a replay. A small game is recorded into a temporary
+ * replay: agents walk over the field, die, are replaced and the teams score.
+ * The replay is played from the start and the state of the arena is
+ * remembered for every step, then the player seeks to the first and the last
+ * step, to the steps around every keyframe and to random steps in random
+ * order. After every seek the arena and the frame that follows it have to
+ * match the state seen while playing. A replay file can be given as an
+ * argument to check it instead of the recorded one.
+ */
+public class ReplayCheck extends Check {
+
+	private static final int WIDTH = 40, HEIGHT = 20;
+
+	private static final int AGENTS = 30;
+
+	// enough steps for several keyframes
+	private static final int STEPS = 4 * ReplayFormat.KEYFRAME_INTERVAL + 50;
+
+	private File replay;
+
+	public ReplayCheck() {
+		this(null);
+	}
+
+	/**
+	 * Instantiates a new check of the given replay.
+	 *
+	 * @param replay the replay or null to record one
+	 */
+	public ReplayCheck(File replay) {
+		this.replay = replay;
+	}
+
+	public static void main(String[] args) {
+
+		execute(new ReplayCheck(args.length > 0 ? new File(args[0]) : null));
+
+	}
+
+	@Override
+	protected void run() throws IOException {
+
+		if (replay != null) {
+			seek(replay);
+			return;
+		}
+
+		File field = File.createTempFile("check", ".field");
+		File game = File.createTempFile("check", ".game");
+		File file = File.createTempFile("check", ".replay");
+
+		try {
+			record(field, game, file);
+			seek(file);
+		} finally {
+			field.delete();
+			game.delete();
+			file.delete();
+		}
+
+	}
+
+	/**
+	 * Records a game without clients. The agents are put on the field and
+	 * moved directly, the recorder only sees the published snapshots.
+	 */
+	private void record(File fieldFile, File gameFile, File replayFile) throws IOException {
+
+		Random random = new Random(0);
+
+		PrintWriter out = new PrintWriter(new FileWriter(fieldFile));
+
+		for (int y = 0; y < HEIGHT; y++) {
+			StringBuilder line = new StringBuilder();
+			for (int x = 0; x < WIDTH; x++) {
+				if (x == 2 && y == 2)
+					line.append('A');
+				else if (x == WIDTH - 3 && y == HEIGHT - 3)
+					line.append('B');
+				else if (x == 0 || y == 0 || x == WIDTH - 1 || y == HEIGHT - 1 || random.nextInt(12) == 0)
+					line.append('#');
+				else if (random.nextInt(40) == 0)
+					line.append(random.nextBoolean() ? 'a' : 'b');
+				else
+					line.append(' ');
+			}
+			out.println(line);
+		}
+
+		out.close();
+
+		out = new PrintWriter(new FileWriter(gameFile));
+		out.println("gameplay.field=" + fieldFile.getAbsolutePath());
+		out.println("team1=red");
+		out.println("team2=blue");
+		out.close();
+
+		Game game = Game.loadFromFile(gameFile);
+		Field field = game.getField();
+		List<Team> teams = game.getTeams();
+
+		ReplayRecorder recorder = new ReplayRecorder(game, replayFile);
+		game.addListener(recorder);
+
+		Vector<Agent> agents = new Vector<Agent>();
+		int next = 1;
+
+		for (int step = 0; step < STEPS; step++) {
+
+			// replace the agents that have died
+			while (agents.size() < AGENTS) {
+				Agent agent = new Agent(teams.get(next % 2), next++);
+				if (field.putBody(agent, new BodyPosition(random.nextInt(WIDTH), random.nextInt(HEIGHT))))
+					agents.add(agent);
+			}
+
+			for (int i = agents.size() - 1; i >= 0; i--) {
+
+				Agent agent = agents.get(i);
+
+				if (random.nextInt(100) == 0) {
+					field.removeBody(agents.remove(i));
+					continue;
+				}
+
+				BodyPosition p = field.getPosition(agent);
+				int x = p.getX() + random.nextInt(3) - 1, y = p.getY() + random.nextInt(3) - 1;
+				Cell cell = field.getCell(x, y);
+
+				if (cell != null && cell.isEmpty())
+					field.putBody(agent, new BodyPosition(x, y, random.nextInt(5) / 10f, 0));
+			}
+
+			if (random.nextInt(20) == 0) {
+				Team team = teams.get(random.nextInt(2));
+				List<Flag> flags = team.getAllFlags();
+
+				if (!flags.isEmpty()) {
+					Flag flag = flags.get(0);
+					field.removeBody(flag);
+					team.getHeadquarters().scorePoint(flag);
+				}
+			}
+
+			game.step(null);
+
+		}
+
+		recorder.close();
+
+	}
+
+	private void seek(File file) throws IOException {
+
+		ReplayPlayer player = new ReplayPlayer(file);
+
+		Hashtable<Integer, Long> states = new Hashtable<Integer, Long>();
+		Vector<Integer> steps = new Vector<Integer>();
+
+		while (player.next()) {
+			states.put(player.getArena().getStep(), hash(player.getArena()));
+			steps.add(player.getArena().getStep());
+		}
+
+		check(steps.size() > 2 * ReplayFormat.KEYFRAME_INTERVAL, "the replay contains frames after several keyframes");
+
+		if (steps.isEmpty())
+			return;
+
+		Vector<Integer> targets = new Vector<Integer>();
+
+		targets.add(player.getLastStep());
+		targets.add(player.getFirstStep());
+
+		for (int step = player.getFirstStep(); step <= player.getLastStep(); step += ReplayFormat.KEYFRAME_INTERVAL) {
+			targets.add(step - 1);
+			targets.add(step);
+			targets.add(step + 1);
+		}
+
+		Random random = new Random(0);
+
+		for (int i = 0; i < 200; i++)
+			targets.add(steps.get(random.nextInt(steps.size())));
+
+		for (int target : targets) {
+
+			if (!states.containsKey(target))
+				continue;
+
+			player.seek(target);
+
+			ReplayArena arena = player.getArena();
+
+			check(arena.getStep() == target && hash(arena) == states.get(target),
+					"seek to step " + target + " gave step " + arena.getStep());
+
+			int index = steps.indexOf(target);
+
+			if (index + 1 < steps.size()) {
+
+				int next = steps.get(index + 1);
+
+				check(player.next() && arena.getStep() == next && hash(arena) == states.get(next),
+						"the frame after step " + target + " matches");
+			}
+
+		}
+
+	}
+
+	/**
+	 * Returns a hash of everything the arena shows: the tiles, the agents, the
+	 * offsets and the scores.
+	 */
+	private static long hash(ReplayArena arena) {
+
+		long hash = arena.getStep();
+
+		for (int y = 0; y < arena.getHeight(); y++) {
+			for (int x = 0; x < arena.getWidth(); x++) {
+				hash = hash * 31 + arena.getBaseTile(x, y);
+				hash = hash * 31 + arena.getBodyTile(x, y);
+				hash = hash * 31 + arena.getAgentId(x, y);
+				hash = hash * 31 + arena.getBodyTeam(x, y);
+				hash = hash * 31 + Float.floatToIntBits(arena.getBodyOffsetX(x, y));
+				hash = hash * 31 + Float.floatToIntBits(arena.getBodyOffsetY(x, y));
+			}
+		}
+
+		for (int i = 0; i < arena.getTeamCount(); i++)
+			hash = hash * 31 + arena.getScore(i);
+
+		return hash;
+
+	}
+
+}
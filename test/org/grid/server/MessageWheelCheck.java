@@ -0,0 +1,150 @@
+/*
+ *  AgentField - a simple capture-the-flag simulation for distributed intelligence
+ *  Copyright (C) 2011 Luka Cehovin <http://vicos.fri.uni-lj.si/lukacu>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.grid.server;
+
+import java.awt.Color;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Random;
+import java.util.Vector;
+
+import org.grid.Check;
+import org.grid.server.Game.FlagMode;
+import org.grid.server.Game.MessageContainter;
+
+/**
+ * A check of the message delivery. Messages with random delays, some of
+ * them longer than a turn of the wheel, are scheduled while the steps advance
+ * and every message has to come out of the wheel exactly in its step, in the
+ * order in which the messages for that step were scheduled. The transmission
+ * clock of an agent must not let more than <code>message.speed</code> bytes
+ * through per step.
+ */
+public class MessageWheelCheck extends Check {
+
+	private static final int STEPS = 3000;
+
+	private static final int SPEED = 10;
+
+	public static void main(String[] args) {
+
+		execute(new MessageWheelCheck());
+
+	}
+
+	@Override
+	protected void run() {
+
+		checkWheel();
+
+		checkBudget();
+
+	}
+
+	private void checkWheel() {
+
+		Random random = new Random(0);
+
+		Team team = new Team("team", Color.RED, FlagMode.UNIQUE);
+
+		MessageWheel wheel = new MessageWheel();
+
+		Hashtable<Integer, Vector<MessageContainter>> expected = new Hashtable<Integer, Vector<MessageContainter>>();
+
+		int scheduled = 0, delivered = 0, late = 0;
+
+		for (int step = 1; step <= STEPS + 1000; step++) {
+
+			// messages are scheduled before the wheel advances, as in Game.step
+			for (int i = step <= STEPS ? random.nextInt(20) : 0; i > 0; i--) {
+
+				int delay = random.nextInt(10) == 0 ? random.nextInt(1000) : random.nextInt(10);
+
+				MessageContainter message = new MessageContainter(team, i, new int[] { 0 },
+						new byte[0], step + delay);
+
+				if (!expected.containsKey(message.getStep()))
+					expected.put(message.getStep(), new Vector<MessageContainter>());
+
+				expected.get(message.getStep()).add(message);
+
+				wheel.schedule(message);
+				scheduled++;
+
+				if (delay >= 256)
+					late++;
+			}
+
+			List<MessageContainter> due = wheel.advance(step);
+			Vector<MessageContainter> wanted = expected.remove(step);
+
+			check(due.equals(wanted == null ? new Vector<MessageContainter>() : wanted),
+					"messages delivered in step " + step);
+
+			delivered += due.size();
+
+			check(wheel.size() == scheduled - delivered, "number of waiting messages in step " + step);
+
+		}
+
+		check(late > 100, "messages delayed for more than a turn of the wheel");
+		check(wheel.size() == 0 && expected.isEmpty(), "all messages delivered");
+
+	}
+
+	private void checkBudget() {
+
+		Random random = new Random(1);
+
+		Agent agent = new Agent(new Team("team", Color.RED, FlagMode.UNIQUE), 1);
+
+		Hashtable<Integer, Integer> bytes = new Hashtable<Integer, Integer>();
+
+		int first = 1, last = 0;
+
+		for (int step = first; step <= STEPS; step++) {
+
+			for (int i = random.nextInt(3); i > 0; i--) {
+
+				int length = random.nextInt(4 * SPEED);
+				int due = (int) (agent.transmit((long) step * SPEED, length) / SPEED);
+
+				check(due >= step, "message due before it was sent in step " + step);
+
+				Integer sum = bytes.get(due);
+				bytes.put(due, (sum == null ? 0 : sum) + length);
+
+				last = Math.max(last, due);
+			}
+
+		}
+
+		int total = 0;
+
+		for (int step = first; step <= last; step++) {
+
+			Integer sum = bytes.get(step);
+			total += sum == null ? 0 : sum;
+
+			check(total <= (step + 1 - first) * SPEED, "bytes delivered until step " + step);
+
+		}
+
+	}
+
+}
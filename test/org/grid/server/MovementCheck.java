@@ -0,0 +1,170 @@
+/*
+ *  AgentField - a simple capture-the-flag simulation for distributed intelligence
+ *  Copyright (C) 2011 Luka Cehovin <http://vicos.fri.uni-lj.si/lukacu>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.grid.server;
+
+import java.awt.Color;
+import java.util.Random;
+import java.util.Vector;
+
+import org.grid.Check;
+import org.grid.protocol.NewMessage.Direction;
+import org.grid.server.Field.BodyPosition;
+import org.grid.server.Game.FlagMode;
+
+/**
+ * A check of the movement. The same crowded field is created three times
+ * and the agents get the same random directions in every copy. The first copy
+ * moves the agents one after another, the second one plans the moves in the
+ * calling thread and the third one on several threads. After every step the
+ * agents have to be at the same positions and the same agents have to be
+ * alive in all copies.
+ */
+public class MovementCheck extends Check {
+
+	private static final int SIZE = 120;
+
+	private static final int AGENTS = 2000;
+
+	private static final int STEPS = 200;
+
+	private static class World {
+
+		private Field field = new Field(SIZE, SIZE);
+
+		private Vector<Agent> agents = new Vector<Agent>();
+
+		private Random random = new Random(0);
+
+		public World() {
+
+			Team[] teams = new Team[] { new Team("team1", Color.RED, FlagMode.UNIQUE),
+					new Team("team2", Color.BLUE, FlagMode.UNIQUE) };
+
+			for (int i = 0; i < teams.length; i++) {
+				teams[i].setIndex(i);
+				field.putBody(teams[i].getHeadquarters(), new BodyPosition(i * (SIZE - 1), i * (SIZE - 1)));
+			}
+
+			for (int i = 0; i < 200; i++)
+				field.putBody(teams[i % 2].newFlag(1), randomPosition());
+
+			for (int i = 0; i < AGENTS; i++) {
+				Agent agent = new Agent(teams[i % 2], i / 2);
+
+				if (field.putBody(agent, randomPosition()))
+					agents.add(agent);
+			}
+
+		}
+
+		private BodyPosition randomPosition() {
+
+			return new BodyPosition(random.nextInt(SIZE), random.nextInt(SIZE));
+
+		}
+
+		/**
+		 * Gives the agents new directions and removes the agents that have
+		 * died in the previous step.
+		 */
+		public void prepare() {
+
+			Direction[] directions = Direction.values();
+
+			for (int i = agents.size() - 1; i >= 0; i--) {
+				if (!agents.get(i).isAlive())
+					field.removeBody(agents.remove(i));
+			}
+
+			for (Agent agent : agents) {
+				if (random.nextInt(4) == 0)
+					agent.setDirection(directions[random.nextInt(directions.length)]);
+			}
+
+		}
+
+		/**
+		 * Compares the agents with the agents of another world.
+		 */
+		public boolean matches(World world) {
+
+			if (agents.size() != world.agents.size())
+				return false;
+
+			for (int i = 0; i < agents.size(); i++) {
+
+				Agent a = agents.get(i), b = world.agents.get(i);
+
+				if (a.isAlive() != b.isAlive())
+					return false;
+
+				BodyPosition p = field.getPosition(a), q = world.field.getPosition(b);
+
+				if (p == null || q == null) {
+					if (p != q)
+						return false;
+					continue;
+				}
+
+				if (p.getX() != q.getX() || p.getY() != q.getY()
+						|| p.getOffsetX() != q.getOffsetX() || p.getOffsetY() != q.getOffsetY())
+					return false;
+			}
+
+			return true;
+
+		}
+
+	}
+
+	public static void main(String[] args) {
+
+		execute(new MovementCheck());
+
+	}
+
+	@Override
+	protected void run() {
+
+		World reference = new World(), serial = new World(), parallel = new World();
+
+		Movement single = new Movement(1), multiple = new Movement(4);
+
+		for (int step = 0; step < STEPS; step++) {
+
+			reference.prepare();
+			serial.prepare();
+			parallel.prepare();
+
+			for (Agent agent : reference.agents)
+				agent.move(reference.field);
+
+			single.move(serial.field, serial.agents);
+			multiple.move(parallel.field, parallel.agents);
+
+			check(reference.matches(serial), "planning in the calling thread differs in step " + step);
+			check(reference.matches(parallel), "planning on several threads differs in step " + step);
+
+			// the moves have to be planned on several threads in every step
+			check(parallel.agents.size() >= 256, "enough agents for parallel planning in step " + step);
+
+		}
+
+	}
+
+}